@@ -0,0 +1,106 @@
+package edu.ucsf.crosslink.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.ucsf.crosslink.model.Affiliation;
+
+/**
+ * Immutable prefix trie of affiliation base URI's, case insensitive.  find() returns the affiliation with the
+ * longest base URI that the given URI starts with, so http://profiles.somewhere.edu/profile wins over
+ * http://profiles.somewhere.edu.  Lookups walk the URI once and do not allocate.  To change it build a new one.
+ */
+final class AffiliationIndex {
+
+	private final Node root;
+	private final List<Affiliation> affiliations;
+
+	AffiliationIndex(List<Affiliation> affiliations) {
+		this.affiliations = new ArrayList<Affiliation>(affiliations);
+		Builder builder = new Builder();
+		for (Affiliation affiliation : affiliations) {
+			builder.add(affiliation);
+		}
+		root = builder.build();
+	}
+
+	// a copy with one more
+	AffiliationIndex with(Affiliation affiliation) {
+		List<Affiliation> list = new ArrayList<Affiliation>(affiliations);
+		list.add(affiliation);
+		return new AffiliationIndex(list);
+	}
+
+	Affiliation find(String uri) {
+		Node node = root;
+		Affiliation found = root.affiliation;
+		for (int i = 0; i < uri.length() && node != null; i++) {
+			node = node.child(Character.toLowerCase(uri.charAt(i)));
+			if (node != null && node.affiliation != null) {
+				found = node.affiliation;
+			}
+		}
+		return found;
+	}
+
+	int size() {
+		return affiliations.size();
+	}
+
+	private static final class Node {
+
+		// sorted, children[i] goes with keys[i]
+		private final char[] keys;
+		private final Node[] children;
+		private final Affiliation affiliation;
+
+		private Node(char[] keys, Node[] children, Affiliation affiliation) {
+			this.keys = keys;
+			this.children = children;
+			this.affiliation = affiliation;
+		}
+
+		private Node child(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			return i >= 0 ? children[i] : null;
+		}
+	}
+
+	private static final class Builder {
+
+		private final Map<Character, Builder> children = new TreeMap<Character, Builder>();
+		private Affiliation affiliation = null;
+
+		private void add(Affiliation affiliation) {
+			Builder builder = this;
+			String uri = affiliation.getURI();
+			for (int i = 0; i < uri.length(); i++) {
+				Character c = Character.toLowerCase(uri.charAt(i));
+				Builder child = builder.children.get(c);
+				if (child == null) {
+					child = new Builder();
+					builder.children.put(c, child);
+				}
+				builder = child;
+			}
+			// first one in wins, same as the old linear scan
+			if (builder.affiliation == null) {
+				builder.affiliation = affiliation;
+			}
+		}
+
+		private Node build() {
+			char[] keys = new char[children.size()];
+			Node[] nodes = new Node[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Builder> entry : children.entrySet()) {
+				keys[i] = entry.getKey();
+				nodes[i++] = entry.getValue().build();
+			}
+			return new Node(keys, nodes, affiliation);
+		}
+	}
+}
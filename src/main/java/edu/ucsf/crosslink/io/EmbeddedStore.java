@@ -0,0 +1,201 @@
+package edu.ucsf.crosslink.io;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.update.UpdateAction;
+
+import edu.ucsf.ctsi.r2r.R2ROntology;
+import edu.ucsf.ctsi.r2r.jena.ResultSetConsumer;
+import edu.ucsf.ctsi.r2r.jena.SparqlPostClient;
+import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
+
+/**
+ * A transactional Jena dataset in this JVM that stands in for Fuseki, so a single node (or a benchmark) runs the
+ * same SPARQL without the HTTP round trip.  MEMORY is gone when we stop, TDB lives in r2r.tdbDir.  The query and
+ * post clients are the ones from r2r with every call made against the dataset instead, each in its own transaction.
+ */
+public class EmbeddedStore {
+
+	private static final Logger LOG = Logger.getLogger(EmbeddedStore.class.getName());
+
+	// FUSEKI is the remote store at r2r.fusekiUrl, the others are embedded
+	public enum Type {FUSEKI, MEMORY, TDB};
+
+	private final Dataset dataset;
+
+	public EmbeddedStore(Type type, String tdbDir) {
+		if (Type.TDB.equals(type)) {
+			if (StringUtils.isBlank(tdbDir)) {
+				throw new IllegalArgumentException("r2r.tdbDir is required for a TDB store");
+			}
+			dataset = TDBFactory.createDataset(tdbDir.trim());
+		}
+		else if (Type.MEMORY.equals(type)) {
+			dataset = TDBFactory.createDataset();
+		}
+		else {
+			throw new IllegalArgumentException(type + " is not an embedded store");
+		}
+		LOG.info("Using embedded " + type + " store" + (Type.TDB.equals(type) ? " in " + tdbDir : ""));
+	}
+
+	public void select(String query, ResultSetConsumer consumer) throws Exception {
+		dataset.begin(ReadWrite.READ);
+		try {
+			QueryExecution qe = QueryExecutionFactory.create(query, dataset);
+			try {
+				consumer.useResultSet(qe.execSelect());
+			}
+			finally {
+				qe.close();
+			}
+		}
+		finally {
+			dataset.end();
+		}
+	}
+
+	// the model returned is a copy, so it is fine to use after the transaction
+	public Model construct(String query) {
+		dataset.begin(ReadWrite.READ);
+		try {
+			QueryExecution qe = QueryExecutionFactory.create(query, dataset);
+			try {
+				return qe.execConstruct(R2ROntology.createDefaultModel());
+			}
+			finally {
+				qe.close();
+			}
+		}
+		finally {
+			dataset.end();
+		}
+	}
+
+	public boolean ask(String query) {
+		dataset.begin(ReadWrite.READ);
+		try {
+			QueryExecution qe = QueryExecutionFactory.create(query, dataset);
+			try {
+				return qe.execAsk();
+			}
+			finally {
+				qe.close();
+			}
+		}
+		finally {
+			dataset.end();
+		}
+	}
+
+	// all of them or none of them
+	public void update(List<String> updates) {
+		if (updates.isEmpty()) {
+			return;
+		}
+		dataset.begin(ReadWrite.WRITE);
+		try {
+			UpdateAction.parseExecute(StringUtils.join(updates, " ;\n"), dataset);
+			dataset.commit();
+		}
+		finally {
+			dataset.end();
+		}
+	}
+
+	public void add(Model model) {
+		dataset.begin(ReadWrite.WRITE);
+		try {
+			dataset.getDefaultModel().add(model);
+			dataset.commit();
+		}
+		finally {
+			dataset.end();
+		}
+	}
+
+	public void close() {
+		dataset.close();
+	}
+
+	public static class QueryClient extends SparqlQueryClient {
+
+		private final EmbeddedStore store;
+
+		public QueryClient(EmbeddedStore store, String url) {
+			super(url);
+			this.store = store;
+		}
+
+		public void select(String query, ResultSetConsumer consumer) throws Exception {
+			store.select(query, consumer);
+		}
+
+		public Model construct(String query) {
+			return store.construct(query);
+		}
+
+		public boolean ask(String query) {
+			return store.ask(query);
+		}
+	}
+
+	// each call commits on its own, so startTransaction and endTransaction have nothing to do
+	public static class PostClient extends SparqlPostClient {
+
+		private final EmbeddedStore store;
+
+		public PostClient(EmbeddedStore store, String updateUrl, String dataUrl) {
+			super(updateUrl, dataUrl);
+			this.store = store;
+		}
+
+		public void post(Model model) throws Exception {
+			store.add(model);
+		}
+
+		public void update(String update) throws Exception {
+			store.update(Arrays.asList(update));
+		}
+
+		public void update(List<String> updates) throws Exception {
+			store.update(updates);
+		}
+
+		public void add(Resource resource) throws Exception {
+			store.add(resource.getModel());
+		}
+
+		public void add(Model model) throws Exception {
+			store.add(model);
+		}
+
+		// same RDF/XML that goes to the Fuseki data endpoint
+		public void add(byte[] body) throws Exception {
+			Model model = R2ROntology.createDefaultModel();
+			model.read(new ByteArrayInputStream(body), null);
+			store.add(model);
+		}
+
+		public void deleteSubject(String subjectURI) throws Exception {
+			store.update(Arrays.asList("DELETE WHERE { <" + subjectURI + "> ?p ?o }"));
+		}
+
+		public void startTransaction() {
+		}
+
+		public void endTransaction() throws Exception {
+		}
+	}
+}
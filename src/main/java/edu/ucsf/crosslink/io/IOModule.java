@@ -4,7 +4,11 @@ import java.util.Properties;
 
 import com.google.inject.AbstractModule;
 
+import edu.ucsf.crosslink.io.http.CircuitBreakerRegistry;
+import edu.ucsf.crosslink.io.http.HostConcurrencyLimiter;
+import edu.ucsf.crosslink.io.http.PageFetcher;
 import edu.ucsf.ctsi.r2r.jena.SparqlPostClient;
+import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 
 public class IOModule extends AbstractModule {
 
@@ -17,8 +21,22 @@ public class IOModule extends AbstractModule {
 	
 	@Override
 	protected void configure() {	
+        bind(HostConcurrencyLimiter.class).asEagerSingleton();
+        bind(CircuitBreakerRegistry.class).asEagerSingleton();
+        bind(PageFetcher.class).asEagerSingleton();
         bind(ThumbnailGenerator.class).asEagerSingleton();
-        bind(SparqlPostClient.class).toInstance(new SparqlPostClient(prop.getProperty("r2r.fusekiUrl") + "/update", prop.getProperty("r2r.fusekiUrl") + "/data?default"));
+        String fusekiUrl = prop.getProperty("r2r.fusekiUrl");
+        EmbeddedStore.Type storeType = EmbeddedStore.Type.valueOf(prop.getProperty("r2r.store", EmbeddedStore.Type.FUSEKI.toString()).trim());
+        if (EmbeddedStore.Type.FUSEKI.equals(storeType)) {
+        	bind(SparqlQueryClient.class).toInstance(new SparqlQueryClient(fusekiUrl + "/query"));
+        	bind(SparqlPostClient.class).toInstance(new SparqlPostClient(fusekiUrl + "/update", fusekiUrl + "/data?default"));
+        }
+        else {
+        	EmbeddedStore store = new EmbeddedStore(storeType, prop.getProperty("r2r.tdbDir"));
+        	bind(EmbeddedStore.class).toInstance(store);
+        	bind(SparqlQueryClient.class).toInstance(new EmbeddedStore.QueryClient(store, fusekiUrl + "/query"));
+        	bind(SparqlPostClient.class).toInstance(new EmbeddedStore.PostClient(store, fusekiUrl + "/update", fusekiUrl + "/data?default"));
+        }
 		bind(SparqlPersistance.class).asEagerSingleton();
 	}
 
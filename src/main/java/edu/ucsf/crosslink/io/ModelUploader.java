@@ -0,0 +1,79 @@
+package edu.ucsf.crosslink.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.riot.web.HttpOp;
+
+/**
+ * Adds models to a Fuseki data endpoint, serializing each one straight into the chunked request body instead of
+ * building the whole thing up in memory first.  N-Triples works with any Fuseki, RDF Thrift needs one that reads it.
+ */
+public class ModelUploader {
+
+	public enum Format {
+		NTRIPLES(RDFLanguages.NTRIPLES), THRIFT(RDFLanguages.THRIFT);
+
+		private final Lang lang;
+
+		private Format(Lang lang) {
+			this.lang = lang;
+		}
+	}
+
+	private final String dataUrl;
+	private final Lang lang;
+
+	public ModelUploader(String dataUrl, Format format) {
+		this.dataUrl = dataUrl;
+		this.lang = format.lang;
+	}
+
+	public void add(Model model) throws Exception {
+		HttpOp.execHttpPost(dataUrl, new ModelEntity(model, lang));
+	}
+
+	public String toString() {
+		return dataUrl + " as " + lang.getLabel();
+	}
+
+	private static final class ModelEntity extends AbstractHttpEntity {
+
+		private final Model model;
+		private final Lang lang;
+
+		private ModelEntity(Model model, Lang lang) {
+			this.model = model;
+			this.lang = lang;
+			setContentType(lang.getContentType().getContentType());
+			setChunked(true);
+		}
+
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		public long getContentLength() {
+			return -1;
+		}
+
+		public InputStream getContent() {
+			throw new UnsupportedOperationException("Only written, never read");
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			StreamRDFWriter.write(out, model.getGraph(), lang);
+			out.flush();
+		}
+
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
@@ -1,27 +1,44 @@
 package edu.ucsf.crosslink.io;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.joda.time.DateTime;
-
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import org.apache.jena.atlas.web.HttpException;
 import org.apache.jena.datatypes.xsd.XSDDateTime;
 
+import edu.ucsf.crosslink.io.http.HostConcurrencyLimiter;
 import edu.ucsf.crosslink.model.Affiliation;
 import edu.ucsf.crosslink.model.R2RResourceObject;
+import edu.ucsf.crosslink.processor.ResearcherProcessor;
 import edu.ucsf.crosslink.processor.controller.ProcessorController;
 import edu.ucsf.ctsi.r2r.R2RConstants;
 import edu.ucsf.ctsi.r2r.R2ROntology;
@@ -34,32 +51,108 @@ import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.jena.query.QueryParseException;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelExtract;
 import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.rdf.model.StatementBoundaryBase;
 import org.apache.jena.rdf.model.StmtIterator;
 import org.apache.jena.riot.web.HttpOp;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
 
 
 public class SparqlPersistance implements R2RConstants {
 
 	private static final Logger LOG = Logger.getLogger(SparqlPersistance.class.getName());
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String sparqlQueryUrl;
 	private SparqlQueryClient sparqlQuery;
 	private SparqlPostClient sparqlClient;
-	private List<Affiliation> knownAffiliations = null;
+	private HostConcurrencyLimiter limiter;
+	private volatile AffiliationIndex knownAffiliations = null;
+	private final Object affiliationLock = new Object();
+	// base URI's that were still unknown right after a reload, so that we do not reload again for every researcher on them
+	private final Map<String, Long> missingAffiliations = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_MISSING_AFFILIATIONS;
+		}
+	});
+	
+	// how many saves to hold before sending them to Fuseki as one update, 0 to send each one as it happens
+	private int writeBehindSize = 0;
+	// transactions waiting for the next flush, and the ones that flush is sending right now
+	private final List<Transaction> pendingTransactions = new ArrayList<Transaction>();
+	private final List<Transaction> flushing = new ArrayList<Transaction>();
+	private int pendingSaves = 0;
+	private final Object flushLock = new Object();
+	private ScheduledExecutorService flusher = null;
+	// after shutdown nothing waits in the buffer
+	private volatile boolean closed = false;
+	// each worker thread collects its own transaction, so concurrent researchers do not end up in each other's
+	private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+	// the last one each thread put into the buffer, see whenStored
+	private final ThreadLocal<Transaction> lastBuffered = new ThreadLocal<Transaction>();
+	// when set every request goes into this first, see setUpdateLog
+	private UpdateLog updateLog = null;
+	private final ReentrantLock replayLock = new ReentrantLock();
+	// so that a burst of requests queues up one extra replay and not one each
+	private final AtomicBoolean replayQueued = new AtomicBoolean(false);
+	// requests from the log that the store would not take, kept so someone can look at them
+	private File deadLetters = null;
+	private long replayRetryMillis = 0;
+	// while the store is down we only try it again from the replayer, not on every request
+	private volatile long replayRetryAt = 0;
+	private ScheduledExecutorService replayer = null;
 	
 	private static final String LOAD_AFFILIATIONS = "SELECT ?r ?l WHERE  {?r <" + RDF_TYPE + "> <" +
 			R2R_AFFILIATION + "> . ?r <" + RDFS_LABEL + "> ?l}";
 	
+	private static final String LAST_PROCESSED = "SELECT ?r ?ts WHERE { ?r <" + R2R_PROCESSED + "> ?c . ?c <" + 
+			R2R_PROCESSED_BY + "> <%1$s> . ?c <" + R2R_PROCESSED_ON + "> ?ts }";
+	
+	// researchers per update when exporting a processing log
+	private static final int EXPORT_CHUNK_SIZE = 500;
+	
+	private static final int MAX_MISSING_AFFILIATIONS = 1000;
+	private static final long MISSING_AFFILIATION_MILLIS = 10 * 60 * 1000L;
+	
+	private static final String CURRENT_STATEMENTS = "CONSTRUCT { <%1$s> ?p ?o } WHERE { <%1$s> ?p ?o }";
+	
 	private enum SaveType {SAVE, UPDATE, ADD}; 
+	
+	// REPLACE deletes the values that an update replaces and reinserts the whole resource, DELTA reads what the
+	// store already has and only sends the triples that changed
+	public enum UpdateMode {REPLACE, DELTA};
+	
+	private UpdateMode updateMode = UpdateMode.REPLACE;
 
 	@Inject
-	public SparqlPersistance(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlPostClient sparqlClient) throws Exception {
-		this.sparqlQuery = new SparqlQueryClient(sparqlQuery + "/query");
+	public SparqlPersistance(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient, 
+			SparqlPostClient sparqlClient, HostConcurrencyLimiter limiter, @Named("writeBehindSize") Integer writeBehindSize, 
+			@Named("writeBehindMillis") Integer writeBehindMillis, @Named("updateMode") UpdateMode updateMode,
+			@Named("storeInitialLimit") Integer storeInitialLimit, @Named("storeMaxLimit") Integer storeMaxLimit) throws Exception {
+		this.sparqlQueryUrl = sparqlQuery + "/query";
+		this.sparqlQuery = sparqlQueryClient;
 		this.sparqlClient = sparqlClient;
+		this.limiter = limiter;
+		// our own store is not one of the sites we crawl, and an embedded one has no host to protect at all
+		if (sparqlClient instanceof EmbeddedStore.PostClient) {
+			limiter.setLimits(sparqlQueryUrl, 0, 0);
+		}
+		else {
+			limiter.setLimits(sparqlQueryUrl, storeInitialLimit, storeMaxLimit);
+		}
+		this.writeBehindSize = writeBehindSize;
+		this.updateMode = updateMode;
 		
 		// putting this here for now 
 		HttpParams params = new BasicHttpParams();		
@@ -75,12 +168,64 @@ public class SparqlPersistance implements R2RConstants {
 		sparqlClient.post(R2ROntology.createR2ROntModel());
 		sparqlClient.update("CREATE GRAPH <" + R2R_DERIVED_GRAPH + ">");
 		// by loading these now, we make sure that we do not collide with calls to upsertAffiliation
-		knownAffiliations = loadAffiliations();
+		knownAffiliations = new AffiliationIndex(loadAffiliations());
+		
+		if (writeBehindSize > 0 && writeBehindMillis > 0) {
+			// so that a quiet period does not leave saves sitting in the buffer
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SparqlPersistance write behind");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						flush();
+					}
+					catch (Exception e) {
+						LOG.log(Level.SEVERE, "Write behind flush failed, will try again", e);
+					}
+				}
+			}, writeBehindMillis, writeBehindMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Blank updateLogDir sends updates straight to the store.  Otherwise every request is written to the log there 
+	 * before it is sent, and when the store can not be reached the request stays in the log and the crawl carries on.  
+	 * The log is replayed in order every updateLogRetrySeconds until the store has everything.  Requests the store 
+	 * rejects outright are moved to rejected.txt in the same directory.
+	 */
+	@Inject(optional=true)
+	public void setUpdateLog(@Named("updateLogDir") String updateLogDir, @Named("updateLogSegmentMB") Integer segmentMB,
+			@Named("updateLogRetrySeconds") Integer retrySeconds) throws Exception {
+		if (updateLogDir == null || updateLogDir.trim().length() == 0) {
+			return;
+		}
+		updateLog = new UpdateLog(new File(updateLogDir.trim()), segmentMB * 1024 * 1024);
+		deadLetters = new File(updateLogDir.trim(), "rejected.txt");
+		replayRetryMillis = retrySeconds * 1000L;
+		// whatever was left from last time goes first
+		replayUpdateLog(true);
+		replayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SparqlPersistance update log");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		replayer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				replayUpdateLog(true);
+			}
+		}, replayRetryMillis, replayRetryMillis, TimeUnit.MILLISECONDS);
 	}
 	
 	private List<Affiliation> loadAffiliations() throws Exception {
 		final List<Affiliation> affiliations = new ArrayList<Affiliation>();
-		sparqlQuery.select(LOAD_AFFILIATIONS, new ResultSetConsumer() {
+		limiter.select(sparqlQuery, sparqlQueryUrl, LOAD_AFFILIATIONS, new ResultSetConsumer() {
 			public void useResultSet(ResultSet rs) {
 				while (rs.hasNext()) {				
 					QuerySolution qs = rs.next();
@@ -94,12 +239,6 @@ public class SparqlPersistance implements R2RConstants {
 				}								
 			}
 		});		
-		// start with longer URI first so that we match http://profiles.somewhere.edu/profile before http://profiles.somewhere.edu
-		Collections.sort(affiliations, new Comparator<Affiliation>() {
-			public int compare(Affiliation o1, Affiliation o2) {
-				return o2.getURI().length() - o1.getURI().length();
-			}			
-		});
 		return affiliations;
 	}
 	
@@ -112,8 +251,12 @@ public class SparqlPersistance implements R2RConstants {
 		saveInternal(robj, SaveType.SAVE);
 	}
 	
-	public void update(R2RResourceObject robj) throws Exception {
-		saveInternal(robj, SaveType.UPDATE);
+	/**
+	 * Values of the replacedPredicates are swapped out for what robj has, values of predicates with a max cardinality 
+	 * restriction are replaced when robj has that predicate, everything else is added to what is already there.
+	 */
+	public void update(R2RResourceObject robj, String... replacedPredicates) throws Exception {
+		saveInternal(robj, SaveType.UPDATE, replacedPredicates);
 	}
 	
 	public void add(R2RResourceObject robj) throws Exception {
@@ -121,63 +264,425 @@ public class SparqlPersistance implements R2RConstants {
 	}
 
 	public void execute(String updates) throws Exception {
-		startTransaction();
-		sparqlClient.update(updates);
-		endTransaction();
+		write(Arrays.asList(updates), null);
 	}
 
 	public void execute(List<String> updates) throws Exception {
-		startTransaction();
-		sparqlClient.update(updates);
-		endTransaction();
+		write(updates, null);
 	}
 
 	// delete existing one first
-	private void saveInternal(R2RResourceObject robj, SaveType saveType) throws Exception {
-		startTransaction();
+	private void saveInternal(R2RResourceObject robj, SaveType saveType, String... replacedPredicates) throws Exception {
 		LOG.log(Level.INFO, "Saving " + robj + ", Type " + saveType);
+		// with requests still waiting in the update log what the store has is out of date, if it is there at all
+		if (SaveType.UPDATE.equals(saveType) && UpdateMode.DELTA.equals(updateMode) && !isBacklogged()) {
+			saveChanges(robj, Arrays.asList(replacedPredicates));
+			return;
+		}
+		write(getSaveUpdates(robj, saveType, Arrays.asList(replacedPredicates)), robj);
+	}
+	
+	private List<String> getSaveUpdates(R2RResourceObject robj, SaveType saveType, List<String> replacedPredicates) {
+		List<String> updates = new ArrayList<String>();
 		for (Resource resource : robj.getResources()) {
-			if (SaveType.SAVE.equals(saveType)) {
-				sparqlClient.deleteSubject(resource.getURI());				
-			}
-			else if (SaveType.UPDATE.equals(saveType)) {
-				// only delete the properties that this resource has maxCardinalityRestrictions on
-				// do as set so that we do not do the same thing more than once
-				Set<String> deletes = new HashSet<String>();
-				StmtIterator si = resource.listProperties();
-				while (si.hasNext()) {
-					Property prop = si.next().getPredicate();
-					if (robj.hasMaxCardinalityRestriction(prop.getURI())) {
-						deletes.add("DELETE WHERE { <" + resource.getURI() + ">  <" + prop.getURI() + "> ?o }");
-					}
+			updates.addAll(getDeletes(robj, resource, saveType, replacedPredicates));
+			updates.add(getInsertData(getResourceModel(resource)));
+		}
+		return updates;
+	}
+	
+	private List<String> getDeletes(R2RResourceObject robj, Resource resource, SaveType saveType, List<String> replacedPredicates) {
+		if (SaveType.SAVE.equals(saveType)) {
+			return Arrays.asList("DELETE WHERE { <" + resource.getURI() + "> ?p ?o }");
+		}
+		else if (SaveType.UPDATE.equals(saveType)) {
+			// only delete the properties that this resource has maxCardinalityRestrictions on
+			// do as set so that we do not do the same thing more than once
+			Set<String> deletes = new HashSet<String>();
+			StmtIterator si = resource.listProperties();
+			while (si.hasNext()) {
+				Property prop = si.next().getPredicate();
+				if (robj.hasMaxCardinalityRestriction(prop.getURI())) {
+					deletes.add("DELETE WHERE { <" + resource.getURI() + ">  <" + prop.getURI() + "> ?o }");
 				}
-				sparqlClient.update(new ArrayList<String>(deletes));
 			}
-			sparqlClient.add(resource);		
+			for (String predicate : replacedPredicates) {
+				deletes.add("DELETE WHERE { <" + resource.getURI() + ">  <" + predicate + "> ?o }");
+			}
+			return new ArrayList<String>(deletes);
 		}
-		endTransaction();
+		return Collections.emptyList();
 	}
 	
-	public Affiliation findAffiliationFor(String uri) throws Exception {
-		int retries = 0;
-		do {
-			for (Affiliation affiliation : knownAffiliations) {
-				if (uri.toLowerCase().startsWith(affiliation.getURI().toLowerCase())) {
-					return affiliation;
-				}
+	// only sends the triples that differ from what the store has, nothing at all when the resource is unchanged
+	private void saveChanges(R2RResourceObject robj, List<String> replacedPredicates) throws Exception {
+		List<String> updates = new ArrayList<String>();
+		for (Resource resource : robj.getResources()) {
+			updates.addAll(getChanges(robj, resource, replacedPredicates));
+		}
+		if (updates.isEmpty()) {
+			LOG.info("No changes for " + robj);
+		}
+		else {
+			write(updates, robj);
+		}
+	}
+	
+	// predicates that the update replaces are deleted by pattern just like REPLACE does, so that nothing we could not 
+	// match up (blank nodes) is left behind, but only when their values changed.  Everything else is only added.
+	private List<String> getChanges(R2RResourceObject robj, Resource resource, List<String> replacedPredicates) throws Exception {
+		Model added = getResourceModel(resource);
+		if (resource.isAnon()) {
+			return Arrays.asList(getInsertData(added));
+		}
+		if (isInTransaction(resource.getURI())) {
+			// this thread already wrote to it and that has not gone out yet, so what the store has says nothing
+			List<String> updates = new ArrayList<String>(getDeletes(robj, resource, SaveType.UPDATE, replacedPredicates));
+			updates.add(getInsertData(added));
+			return updates;
+		}
+		if (isPending(resource.getURI())) {
+			// what the store has would be out of date
+			flush();
+		}
+		Model current = construct(String.format(CURRENT_STATEMENTS, resource.getURI()));
+		Set<Property> replaced = new HashSet<Property>();
+		for (String predicate : replacedPredicates) {
+			replaced.add(added.createProperty(predicate));
+		}
+		StmtIterator si = resource.listProperties();
+		while (si.hasNext()) {
+			Property prop = si.next().getPredicate();
+			if (robj.hasMaxCardinalityRestriction(prop.getURI())) {
+				replaced.add(prop);
 			}
-			// if we are here, we did not find it. Try again with a fresh copy but just ONCE
-			knownAffiliations = loadAffiliations();
-		} while(retries++ < 1);
+		}
 		
-		// make a new one with an ugly name
+		List<String> updates = new ArrayList<String>();
+		Model kept = R2ROntology.createDefaultModel().add(current);
+		for (Property prop : replaced) {
+			// blank nodes never match, so a predicate with one on either side always counts as changed
+			if (!added.listStatements(resource, prop, (RDFNode)null).toSet().equals(
+					current.listStatements(resource, prop, (RDFNode)null).toSet())) {
+				updates.add("DELETE WHERE { <" + resource.getURI() + ">  <" + prop.getURI() + "> ?o }");
+				kept.removeAll(resource, prop, null);
+			}
+		}
+		added.remove(kept);
+		if (!added.isEmpty()) {
+			updates.add(getInsertData(added));
+		}
+		return updates;
+	}
+	
+	// the resource and any blank nodes hanging off of it
+	private static Model getResourceModel(Resource resource) {
+		return new ModelExtract(new StatementBoundaryBase() {
+			public boolean stopAt(Statement s) {
+				return !s.getObject().isAnon();
+			}
+		}).extract(resource, resource.getModel());
+	}
+	
+	private static String getInsertData(Model model) {
+		return "INSERT DATA { " + toNTriples(model) + "}";
+	}
+	
+	private static String toNTriples(Model model) {
+		StringWriter out = new StringWriter();
+		model.write(out, "N-TRIPLE");
+		return out.toString();
+	}
+	
+	private Model construct(String query) throws Exception {
+		HostConcurrencyLimiter.Permit permit = limiter.acquire(sparqlQueryUrl);
+		Exception failure = null;
+		try {
+			return sparqlQuery.construct(query);
+		}
+		catch (Exception e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			permit.release(failure);
+		}
+	}
+	
+	private boolean isInTransaction(String subject) {
+		Transaction tx = transaction.get();
+		return tx != null && tx.subjects.contains(subject);
+	}
+	
+	private boolean isPending(String subject) {
+		synchronized (pendingTransactions) {
+			for (Transaction tx : pendingTransactions) {
+				if (tx.subjects.contains(subject)) {
+					return true;
+				}
+			}
+			for (Transaction tx : flushing) {
+				if (tx.subjects.contains(subject)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	private boolean isWriteBehind() {
+		return writeBehindSize > 0;
+	}
+	
+	// robj is null for statements that are not a save
+	private void write(List<String> updates, R2RResourceObject robj) throws Exception {
+		if (updates.isEmpty()) {
+			return;
+		}
+		Transaction tx = transaction.get();
+		if (tx != null) {
+			tx.add(updates, robj);
+		}
+		else if (isWriteBehind()) {
+			Transaction single = new Transaction();
+			single.add(updates, robj);
+			buffer(single);
+		}
+		else {
+			send(updates);
+		}
+	}
+	
+	// a transaction goes into the buffer whole, so a flush never splits it.  A flush that fails here is not the 
+	// failure of whoever happened to fill the buffer, what was in it stays there for the flusher to try again.
+	private void buffer(Transaction tx) {
+		boolean full = false;
+		synchronized (pendingTransactions) {
+			pendingTransactions.add(tx);
+			pendingSaves += tx.saves;
+			full = pendingSaves >= writeBehindSize;
+		}
+		lastBuffered.set(tx);
+		if (full || closed) {
+			try {
+				flush();
+			}
+			catch (Exception e) {
+				LOG.log(Level.SEVERE, "Write behind flush failed, will try again", e);
+			}
+		}
+	}
+	
+	/**
+	 * Sends everything in the write behind buffer as one SPARQL update.  The operations go in the order they were 
+	 * buffered, so a researcher's deletes still land before its inserts.  If the store can not be reached they stay 
+	 * in the buffer for the next try.  If the store rejects the request each transaction is sent on its own and the 
+	 * ones it still rejects are dropped, so that one bad save does not hold back everything behind it.
+	 */
+	public void flush() throws Exception {
+		if (!isWriteBehind()) {
+			return;
+		}
+		synchronized (flushLock) {
+			List<Transaction> batch = null;
+			int saves = 0;
+			synchronized (pendingTransactions) {
+				if (pendingTransactions.isEmpty()) {
+					return;
+				}
+				batch = new ArrayList<Transaction>(pendingTransactions);
+				saves = pendingSaves;
+				pendingTransactions.clear();
+				pendingSaves = 0;
+				flushing.addAll(batch);
+			}
+			List<String> updates = new ArrayList<String>();
+			for (Transaction tx : batch) {
+				updates.addAll(tx.updates);
+			}
+			try {
+				send(updates);
+				stored(batch);
+				LOG.info("Flushed " + saves + " saves in " + updates.size() + " operations");
+			}
+			catch (Exception e) {
+				if (!isRejected(e)) {
+					requeue(batch);
+					throw e;
+				}
+				LOG.log(Level.WARNING, "Store rejected a flush of " + saves + " saves, sending them one at a time", e);
+				flushEach(batch);
+			}
+		}
+	}
+	
+	private void flushEach(List<Transaction> batch) throws Exception {
+		for (int i = 0; i < batch.size(); i++) {
+			Transaction tx = batch.get(i);
+			try {
+				send(tx.updates);
+				stored(Arrays.asList(tx));
+			}
+			catch (Exception e) {
+				if (!isRejected(e)) {
+					requeue(batch.subList(i, batch.size()));
+					throw e;
+				}
+				LOG.log(Level.SEVERE, "Store rejected " + tx + ", dropping it", e);
+				for (WriteListener listener : done(Arrays.asList(tx))) {
+					listener.rejected(e);
+				}
+			}
+		}
+	}
+	
+	// back to the front of the buffer, ahead of anything that came in while we were trying
+	private void requeue(List<Transaction> unsent) {
+		synchronized (pendingTransactions) {
+			flushing.removeAll(unsent);
+			pendingTransactions.addAll(0, unsent);
+			for (Transaction tx : unsent) {
+				pendingSaves += tx.saves;
+			}
+		}
+	}
+	
+	private void stored(List<Transaction> sent) {
+		for (WriteListener listener : done(sent)) {
+			listener.stored();
+		}
+	}
+	
+	// takes them out of flushing along with their listeners, so whenStored can not add one that never gets called
+	private List<WriteListener> done(List<Transaction> finished) {
+		List<WriteListener> listeners = new ArrayList<WriteListener>();
+		synchronized (pendingTransactions) {
+			for (Transaction tx : finished) {
+				flushing.remove(tx);
+				tx.done = true;
+				listeners.addAll(tx.listeners);
+				tx.listeners.clear();
+			}
+		}
+		return listeners;
+	}
+	
+	/**
+	 * Calls the listener once everything this thread has written is in the store, or in the update log when there 
+	 * is one.  That is right away unless some of it is still in an open transaction or the write behind buffer.
+	 */
+	public void whenStored(WriteListener listener) {
+		Transaction tx = transaction.get();
+		if (tx == null) {
+			tx = lastBuffered.get();
+		}
+		if (tx != null) {
+			// the buffer goes out in order, so the last one this thread wrote covers the ones before it
+			synchronized (pendingTransactions) {
+				if (!tx.done) {
+					tx.listeners.add(listener);
+					return;
+				}
+			}
+		}
+		listener.stored();
+	}
+	
+	// the store answered and said no, so sending it again will not help.  No answer at all or a 5xx might go through later
+	static boolean isRejected(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof QueryParseException) {
+				// from the embedded store
+				return true;
+			}
+			else if (t instanceof QueryExceptionHTTP) {
+				return isRejectedStatus(((QueryExceptionHTTP)t).getResponseCode());
+			}
+			else if (t instanceof HttpException && ((HttpException)t).getResponseCode() > 0) {
+				return isRejectedStatus(((HttpException)t).getResponseCode());
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isRejectedStatus(int status) {
+		return status >= 400 && status < 500 && status != 408 && status != 429;
+	}
+	
+	/**
+	 * Sends what is left in the write behind buffer, stops the flusher and the replayer and closes the update log.  
+	 * Anything written after this is flushed as soon as it is buffered.
+	 */
+	public void shutdown() {
+		closed = true;
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+		try {
+			flush();
+		}
+		catch (Exception e) {
+			LOG.log(Level.SEVERE, "Unable to flush the write behind buffer, " + pendingSaves + " saves were not stored", e);
+		}
+		if (updateLog != null) {
+			replayer.shutdownNow();
+			replayLock.lock();
+			try {
+				updateLog.close();
+				LOG.info("Closed " + updateLog);
+			}
+			catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to close " + updateLog, e);
+			}
+			finally {
+				replayLock.unlock();
+			}
+		}
+	}
+	
+	public Affiliation findAffiliationFor(String uri) throws Exception {
+		AffiliationIndex index = knownAffiliations;
+		Affiliation affiliation = index.find(uri);
+		if (affiliation != null) {
+			return affiliation;
+		}
 		URI uriObj = new URI(uri);
-		Affiliation affiliation = new Affiliation(uriObj.getScheme()+ "://" + uriObj.getHost(), uriObj.getHost());
-		save(affiliation);
-		LOG.info("Saved " + affiliation);
+		String baseURL = uriObj.getScheme()+ "://" + uriObj.getHost();
+		Long missingSince = missingAffiliations.get(baseURL);
+		if (missingSince == null || missingSince < System.currentTimeMillis() - MISSING_AFFILIATION_MILLIS) {
+			// if we are here, we did not find it. Try again with a fresh copy
+			affiliation = reloadAffiliations(index).find(uri);
+			if (affiliation != null) {
+				return affiliation;
+			}
+			missingAffiliations.put(baseURL, System.currentTimeMillis());
+		}
 		
+		synchronized (affiliationLock) {
+			// another thread may have made it while we waited
+			affiliation = knownAffiliations.find(uri);
+			if (affiliation == null) {
+				// make a new one with an ugly name
+				affiliation = new Affiliation(baseURL, uriObj.getHost());
+				LOG.log(Level.INFO, "Saving " + affiliation);
+				// the next reload comes from the store, so it needs to be there now and not in someone's transaction
+				send(getSaveUpdates(affiliation, SaveType.SAVE, Collections.<String>emptyList()));
+				knownAffiliations = knownAffiliations.with(affiliation);
+				LOG.info("Saved " + affiliation);
+			}
+		}
 		return affiliation;
 	}
+	
+	// when a burst of threads miss at once only the first one goes to the store, the rest use what it loaded
+	private AffiliationIndex reloadAffiliations(AffiliationIndex stale) throws Exception {
+		synchronized (affiliationLock) {
+			if (knownAffiliations == stale) {
+				knownAffiliations = new AffiliationIndex(loadAffiliations());
+			}
+			return knownAffiliations;
+		}
+	}
 
     public Calendar startCrawl(ProcessorController processorController) throws Exception {
 		return updateTimestampFieldFor(processorController.getURI(), R2R_PROCESSOR_START_DT);
@@ -190,22 +695,54 @@ public class SparqlPersistance implements R2RConstants {
 	public Calendar dateOfLastCrawl(ProcessorController processorController) throws Exception {
 		String sparql = "SELECT ?dt WHERE {<" + processorController.getURI() + "> <" + R2R_PROCESSOR_END_DT + "> ?dt}";
 		DateResultSetConsumer consumer = new DateResultSetConsumer();
-		sparqlQuery.select(sparql, consumer);
+		limiter.select(sparqlQuery, sparqlQueryUrl, sparql, consumer);
 		return consumer.getCalendar();
 	}
 
-	public boolean skip(String researcherURI, String timestampField, int daysConsideredOld) throws Exception {
-		final AtomicLong dt = new AtomicLong();
-		sparqlQuery.select(String.format("SELECT ?ts WHERE {<%1$s> <" + timestampField + "> ?ts}", researcherURI), new ResultSetConsumer() {
+	// when the processor last processed each researcher, all in one query
+	public Map<String, Long> loadLastProcessed(String processorURI) throws Exception {
+		final Map<String, Long> lastProcessed = new HashMap<String, Long>();
+		limiter.select(sparqlQuery, sparqlQueryUrl, String.format(LAST_PROCESSED, processorURI), new ResultSetConsumer() {
 			public void useResultSet(ResultSet rs) {
-				if (rs.hasNext()) {				
+				while (rs.hasNext()) {				
 					QuerySolution qs = rs.next();
-					dt.set(((XSDDateTime)qs.getLiteral("?ts").getValue()).asCalendar().getTimeInMillis());
+					String researcherURI = qs.getResource("?r").getURI();
+					long ts = ((XSDDateTime)qs.getLiteral("?ts").getValue()).asCalendar().getTimeInMillis();
+					Long existing = lastProcessed.get(researcherURI);
+					if (existing == null || existing < ts) {
+						lastProcessed.put(researcherURI, ts);
+					}
 				}								
 			}
 		});
-		long threshold = new DateTime().minusDays(daysConsideredOld).getMillis();
-		return dt.get() > threshold;
+		return lastProcessed;
+	}
+	
+	// writes a processing log kept outside of the store back into it, replacing what the store had for these researchers
+	public void exportProcessingLog(String processorURI, Map<String, Long> lastProcessed) throws Exception {
+		List<String> updates = new ArrayList<String>();
+		Model model = R2ROntology.createDefaultModel();
+		Resource processor = model.createResource(processorURI);
+		for (Map.Entry<String, Long> entry : lastProcessed.entrySet()) {
+			updates.add(String.format(ResearcherProcessor.DELETE_PRIOR_PROCESS_LOG, entry.getKey(), processorURI));
+			Calendar ts = Calendar.getInstance();
+			ts.setTimeInMillis(entry.getValue());
+			Resource crawl = model.createResource();
+			crawl.addProperty(model.createProperty(R2R_PROCESSED_BY), processor);
+			crawl.addLiteral(model.createProperty(R2R_PROCESSED_ON), model.createTypedLiteral(ts));
+			model.add(model.createResource(entry.getKey()), model.createProperty(R2R_PROCESSED), crawl);
+			if (updates.size() >= EXPORT_CHUNK_SIZE) {
+				updates.add(getInsertData(model));
+				execute(updates);
+				updates = new ArrayList<String>();
+				model = R2ROntology.createDefaultModel();
+				processor = model.createResource(processorURI);
+			}
+		}
+		if (!updates.isEmpty()) {
+			updates.add(getInsertData(model));
+			execute(updates);
+		}
 	}
 	
 	// TODO clean this up!
@@ -216,10 +753,9 @@ public class SparqlPersistance implements R2RConstants {
 		Resource r = model.createResource(subjectUri);
 		Property p = model.createProperty(predicate);
 		model.addLiteral(r, p,  model.createTypedLiteral(now));		
-    	startTransaction();
-    	sparqlClient.update( "DELETE WHERE { <" + subjectUri + ">  <" + p.getURI()+ "> ?dt }");
-    	sparqlClient.add(model);
-    	endTransaction();
+		// marks the start or end of a crawl, so everything buffered before it should be in the store
+		flush();
+		send(Arrays.asList("DELETE WHERE { <" + subjectUri + ">  <" + p.getURI()+ "> ?dt }", getInsertData(model)));
     	return now;
 	}
 	
@@ -238,12 +774,194 @@ public class SparqlPersistance implements R2RConstants {
 		}		
 	}
 	
+	/**
+	 * Starts collecting this thread's updates, they go out as one SPARQL update request at endTransaction (or whole 
+	 * into the write behind buffer).  These do not nest, starting one while one is open just keeps adding to it.
+	 */
 	public void startTransaction() {
-		sparqlClient.startTransaction();
+		if (transaction.get() == null) {
+			transaction.set(new Transaction());
+		}
 	}
 
 	public void endTransaction() throws Exception {
-		sparqlClient.endTransaction();
+		Transaction tx = transaction.get();
+		if (tx == null) {
+			return;
+		}
+		transaction.remove();
+		if (tx.updates.isEmpty()) {
+			stored(Arrays.asList(tx));
+		}
+		else if (isWriteBehind()) {
+			buffer(tx);
+		}
+		else {
+			send(tx.updates);
+			stored(Arrays.asList(tx));
+		}
+	}
+	
+	// drops whatever this thread has collected, call it in a finally so a failed researcher does not leave its 
+	// transaction open for whatever the thread does next.  Does nothing after endTransaction.
+	public void abortTransaction() {
+		Transaction tx = transaction.get();
+		if (tx != null) {
+			transaction.remove();
+			LOG.info("Dropped a transaction of " + tx.updates.size() + " operations");
+		}
+	}
+
+	// one request, so Fuseki applies all of it or none of it
+	private void send(List<String> updates) throws Exception {
+		StringBuilder request = new StringBuilder();
+		for (String update : updates) {
+			request.append(request.length() > 0 ? " ;\n" : "").append(update);
+		}
+		if (updateLog != null) {
+			updateLog.append(request.toString());
+			sendLogged();
+		}
+		else {
+			sendRequest(request.toString());
+		}
+	}
+	
+	// when ours is the only request in the log this thread sends it, a backlog is left to the replayer so that one 
+	// worker does not end up draining it while the rest wait on the lock
+	private void sendLogged() {
+		if (updateLog.getPendingCount() == 1 && System.currentTimeMillis() >= replayRetryAt && replayLock.tryLock()) {
+			try {
+				replay(1);
+			}
+			finally {
+				replayLock.unlock();
+			}
+		}
+		if (isBacklogged() && !closed && replayQueued.compareAndSet(false, true)) {
+			replayer.execute(new Runnable() {
+				public void run() {
+					replayQueued.set(false);
+					replayUpdateLog(false);
+				}
+			});
+		}
+	}
+	
+	private boolean isBacklogged() {
+		return updateLog != null && updateLog.getPendingCount() > 0;
+	}
+	
+	// unless retry is set nothing is sent while the store is down
+	private void replayUpdateLog(boolean retry) {
+		if (!retry && System.currentTimeMillis() < replayRetryAt) {
+			return;
+		}
+		replayLock.lock();
+		try {
+			replay(Integer.MAX_VALUE);
+		}
+		finally {
+			replayLock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends up to max requests from the update log, oldest first and one at a time so the order is kept.  A request 
+	 * the store rejects goes to the dead letter file and we carry on with the next one, but when the store can not 
+	 * be reached (no answer, 5xx) we stop and leave the rest for the replayer.  Call with the replayLock held.
+	 */
+	private void replay(int max) {
+		int sent = 0;
+		int rejected = 0;
+		try {
+			String request;
+			while (sent + rejected < max && (request = updateLog.peek()) != null) {
+				try {
+					sendRequest(request);
+					sent++;
+				}
+				catch (Exception e) {
+					if (!isRejected(e)) {
+						throw e;
+					}
+					deadLetter(request, e);
+					rejected++;
+				}
+				updateLog.remove();
+			}
+			if (replayRetryAt > 0) {
+				LOG.info("Store is back, " + updateLog);
+				replayRetryAt = 0;
+			}
+		}
+		catch (Exception e) {
+			replayRetryAt = System.currentTimeMillis() + replayRetryMillis;
+			updateLog.force();
+			LOG.log(Level.WARNING, "Unable to send to the store after " + sent + " requests, " + updateLog, e);
+		}
+	}
+	
+	// an IOException here leaves the request in the log, we do not want to lose it twice
+	private void deadLetter(String request, Exception e) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(deadLetters, true), UTF8);
+		try {
+			writer.write("# " + new Date() + " " + e + "\n" + request + "\n\n");
+		}
+		finally {
+			writer.close();
+		}
+		LOG.log(Level.SEVERE, "Store rejected a request from the update log, moved it to " + deadLetters, e);
+	}
+	
+	private void sendRequest(String request) throws Exception {
+		HostConcurrencyLimiter.Permit permit = limiter.acquire(sparqlQueryUrl);
+		Exception failure = null;
+		try {
+			sparqlClient.update(request);
+		}
+		catch (Exception e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			permit.release(failure);
+		}
+	}
+	
+	/**
+	 * Told once what a thread wrote is safe, see whenStored.  Called on whichever thread sent it.
+	 */
+	public interface WriteListener {
+		void stored();
+		
+		// the store would not take it and it will not be tried again
+		void rejected(Exception e);
+	}
+	
+	private static final class Transaction {
+		private final List<String> updates = new ArrayList<String>();
+		private final Set<String> subjects = new HashSet<String>();
+		private final List<WriteListener> listeners = new ArrayList<WriteListener>();
+		private int saves = 0;
+		// guarded by pendingTransactions like the listeners
+		private boolean done = false;
+		
+		private void add(List<String> updates, R2RResourceObject robj) {
+			this.updates.addAll(updates);
+			if (robj != null) {
+				saves++;
+				for (Resource resource : robj.getResources()) {
+					if (resource.isURIResource()) {
+						subjects.add(resource.getURI());
+					}
+				}
+			}
+		}
+		
+		public String toString() {
+			return "transaction of " + updates.size() + " operations for " + subjects;
+		}
 	}
 
 }
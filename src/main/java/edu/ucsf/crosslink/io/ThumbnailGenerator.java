@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -17,6 +18,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
+import edu.ucsf.crosslink.io.http.HostConcurrencyLimiter;
 import edu.ucsf.crosslink.model.Affiliation;
 import edu.ucsf.crosslink.model.Researcher;
 
@@ -29,14 +31,17 @@ public class ThumbnailGenerator {
 	private String thumbnailRootURL;
 	private int thumbnailWidth = 100;
 	private int thumbnailHeight = 100;
+	private HostConcurrencyLimiter limiter = null;
 	
 	@Inject
 	public ThumbnailGenerator(@Named("thumbnailDir") String thumbnailDir, @Named("thumbnailRootURL") String thumbnailRootURL, 
-			@Named("thumbnailWidth") Integer thumbnailWidth, @Named("thumbnailHeight") Integer thumbnailHeight) {
+			@Named("thumbnailWidth") Integer thumbnailWidth, @Named("thumbnailHeight") Integer thumbnailHeight,
+			HostConcurrencyLimiter limiter) {
 		this.thumbnailDir = thumbnailDir;
 		this.thumbnailRootURL = thumbnailRootURL;
 		this.thumbnailWidth = thumbnailWidth;
 		this.thumbnailHeight = thumbnailHeight;
+		this.limiter = limiter;
 		// prove that this works from a user rights perspective
 		File directory = new File(thumbnailDir);
 		directory.mkdirs();		
@@ -52,9 +57,7 @@ public class ThumbnailGenerator {
 				try {
 					File thumbnail = new File(thumbnailDir + "/" + loc );
 					new File(thumbnail.getParent()).mkdirs();
-					Thumbnails.of(new URL(imageURL))
-			        	.size(thumbnailWidth, thumbnailHeight)
-			        	.toFile(thumbnail);
+					writeThumbnail(imageURL, thumbnail);
 					// if we made it here, we are good
 					String thumbnailURL = thumbnailRootURL + "/" + loc;
 					researcher.setConfirmedImgURLs(imageURL, thumbnailURL);
@@ -86,9 +89,7 @@ public class ThumbnailGenerator {
 			File thumbnail = new File(thumbnailDir + "/" + loc );
 			new File(thumbnail.getParent()).mkdirs();
 			try {
-				Thumbnails.of(new URL(imageURL))
-		        	.size(thumbnailWidth, thumbnailHeight)
-		        	.toFile(thumbnail);
+				writeThumbnail(imageURL, thumbnail);
 			}
 			catch (IOException e) {
 				LOG.log(Level.WARNING, e.getMessage(), e);
@@ -99,7 +100,49 @@ public class ThumbnailGenerator {
 		}
 	}	
 	
-	private static void saveImage(String imageUrl, String destinationFile) throws IOException {
+	private void writeThumbnail(String imageURL, File thumbnail) throws IOException {
+		HostConcurrencyLimiter.Permit permit = acquire(imageURL);
+		IOException failure = null;
+		try {
+			Thumbnails.of(new URL(imageURL))
+	        	.size(thumbnailWidth, thumbnailHeight)
+	        	.toFile(thumbnail);
+		}
+		catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			permit.release(failure);
+		}
+	}
+	
+	private HostConcurrencyLimiter.Permit acquire(String imageURL) throws IOException {
+		try {
+			return limiter.acquire(imageURL);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to fetch " + imageURL);
+		}
+	}
+	
+	private void saveImage(String imageUrl, String destinationFile) throws IOException {
+		HostConcurrencyLimiter.Permit permit = acquire(imageUrl);
+		IOException failure = null;
+		try {
+			saveImageInternal(imageUrl, destinationFile);
+		}
+		catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			permit.release(failure);
+		}
+	}
+	
+	private static void saveImageInternal(String imageUrl, String destinationFile) throws IOException {
 		URL url = new URL(imageUrl);
 		InputStream is = url.openStream();
 		OutputStream os = new FileOutputStream(destinationFile);
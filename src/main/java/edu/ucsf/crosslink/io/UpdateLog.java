@@ -0,0 +1,280 @@
+package edu.ucsf.crosslink.io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of SPARQL update requests on their way to the store, kept in memory mapped segment files so
+ * that what we harvested survives the store being down (or us being restarted) until it can be sent.
+ *
+ * Each record is a length, a state byte (pending or applied), a CRC of the request and the request as UTF-8.  The
+ * length goes in last, so a record cut short by a crash reads as the end of the segment.  Requests come back out
+ * of peek() in the order they went in, and once remove() marks the last one in a segment applied the segment is
+ * deleted.  There should only be one thread calling peek() and remove().
+ */
+final class UpdateLog {
+
+	private static final Logger LOG = Logger.getLogger(UpdateLog.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".wal";
+	// length, state, crc
+	private static final int HEADER = 4 + 1 + 8;
+	private static final byte PENDING = 0;
+	private static final byte APPLIED = 1;
+
+	private final File directory;
+	private final int segmentSize;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSegment = 0;
+	private int pending = 0;
+
+	UpdateLog(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		directory.mkdirs();
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		// the names are zero padded, so this is the order they were written in
+		Arrays.sort(files);
+		for (File file : files) {
+			nextSegment = Math.max(nextSegment, getNumber(file) + 1);
+			if (countPending(file) == 0) {
+				delete(file);
+				continue;
+			}
+			Segment segment = new Segment(file, (int)file.length());
+			pending += segment.pending;
+			segments.add(segment);
+		}
+		// start writing into a new segment, the old ones just drain
+		segments.add(new Segment(newFile(), segmentSize));
+		LOG.info("Opened " + this);
+	}
+
+	synchronized void append(String request) throws IOException {
+		if (segments.isEmpty()) {
+			throw new IOException(directory + " has been closed");
+		}
+		byte[] bytes = request.getBytes(UTF8);
+		Segment current = segments.getLast();
+		if (!current.hasRoom(bytes.length)) {
+			current.buffer.force();
+			current = new Segment(newFile(), Math.max(segmentSize, HEADER + bytes.length));
+			segments.add(current);
+		}
+		current.append(bytes);
+		pending++;
+	}
+
+	// the oldest request that has not been applied yet, or null when we are caught up
+	synchronized String peek() {
+		for (Segment segment : segments) {
+			String request = segment.peek();
+			if (request != null) {
+				return request;
+			}
+		}
+		return null;
+	}
+
+	// marks the request from the last peek() as applied
+	synchronized void remove() throws IOException {
+		while (!segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			if (segment.remove()) {
+				pending--;
+				if (segment.isDrained() && segments.size() > 1) {
+					segments.removeFirst();
+					segment.close();
+					delete(segment.file);
+				}
+				return;
+			}
+			else if (segments.size() > 1) {
+				// nothing left in this one
+				segments.removeFirst();
+				segment.close();
+				delete(segment.file);
+			}
+			else {
+				return;
+			}
+		}
+	}
+
+	synchronized int getPendingCount() {
+		return pending;
+	}
+
+	synchronized void force() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+
+	synchronized void close() throws IOException {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			segment.close();
+		}
+		segments.clear();
+	}
+
+	public synchronized String toString() {
+		return "Update log in " + directory + " with " + pending + " pending requests in " + segments.size() + " segments";
+	}
+
+	private File newFile() {
+		return new File(directory, String.format("%012d", nextSegment++) + SUFFIX);
+	}
+
+	private static long getNumber(File file) {
+		try {
+			return Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// reads without mapping, so that a finished segment can be deleted right away
+	private static int countPending(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate((int)raf.length());
+			raf.getChannel().read(buffer, 0);
+			return scan(buffer, null);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// returns how many pending records there are, and fills in their positions if asked
+	private static int scan(ByteBuffer buffer, List<Integer> positions) {
+		int count = 0;
+		int position = 0;
+		while (position + HEADER <= buffer.limit()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER + length > buffer.limit()) {
+				break;
+			}
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(position + HEADER + i);
+			}
+			if (buffer.getLong(position + 5) != crc(bytes)) {
+				break;
+			}
+			if (buffer.get(position + 4) == PENDING) {
+				count++;
+				if (positions != null) {
+					positions.add(position);
+				}
+			}
+			position += HEADER + length;
+		}
+		return count;
+	}
+
+	private static long crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private static void delete(File file) {
+		if (!file.delete()) {
+			// can happen on Windows while the mapping is still around, we will get it next time
+			LOG.log(Level.WARNING, "Unable to delete " + file);
+		}
+	}
+
+	private static final class Segment {
+
+		private final File file;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		// records that are still pending, oldest first
+		private final LinkedList<Integer> positions = new LinkedList<Integer>();
+		private int writePosition = 0;
+		private int pending = 0;
+
+		private Segment(File file, int size) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			List<Integer> found = new ArrayList<Integer>();
+			pending = scan(buffer, found);
+			positions.addAll(found);
+			// new records go after the last one we can read
+			while (writePosition + HEADER <= buffer.limit() && buffer.getInt(writePosition) > 0 &&
+					writePosition + HEADER + buffer.getInt(writePosition) <= buffer.limit()) {
+				writePosition += HEADER + buffer.getInt(writePosition);
+			}
+		}
+
+		private boolean hasRoom(int length) {
+			return writePosition + HEADER + length <= buffer.limit();
+		}
+
+		private void append(byte[] bytes) {
+			buffer.put(writePosition + 4, PENDING);
+			buffer.putLong(writePosition + 5, crc(bytes));
+			for (int i = 0; i < bytes.length; i++) {
+				buffer.put(writePosition + HEADER + i, bytes[i]);
+			}
+			// last, this is what makes the record readable
+			buffer.putInt(writePosition, bytes.length);
+			positions.add(writePosition);
+			pending++;
+			writePosition += HEADER + bytes.length;
+		}
+
+		private String peek() {
+			if (positions.isEmpty()) {
+				return null;
+			}
+			int position = positions.getFirst();
+			byte[] bytes = new byte[buffer.getInt(position)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(position + HEADER + i);
+			}
+			return new String(bytes, UTF8);
+		}
+
+		private boolean remove() {
+			if (positions.isEmpty()) {
+				return false;
+			}
+			buffer.put(positions.removeFirst() + 4, APPLIED);
+			pending--;
+			return true;
+		}
+
+		private boolean isDrained() {
+			return positions.isEmpty();
+		}
+
+		private void close() throws IOException {
+			raf.close();
+		}
+	}
+}
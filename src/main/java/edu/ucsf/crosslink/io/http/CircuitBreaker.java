@@ -0,0 +1,148 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.util.logging.Logger;
+
+/**
+ * Closed / open / half open circuit breaker over a sliding window of the last windowSize calls.
+ * Trips open when at least minimumCalls are in the window and failureRate percent of them failed.  While open
+ * every call fails right away.  After openMillis one probe call is let through (half open), and its outcome
+ * decides whether the breaker closes again or stays open for another openMillis.
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	private final String name;
+	private final int failureRate;
+	private final int minimumCalls;
+	private final long openMillis;
+
+	// ring buffer of outcomes, true is a failure
+	private final boolean[] window;
+	private int next = 0;
+	private int calls = 0;
+	private int failures = 0;
+
+	private State state = State.CLOSED;
+	private long openedAt = 0;
+	private boolean probing = false;
+	private int trips = 0;
+
+	public CircuitBreaker(String name, int windowSize, int failureRate, int minimumCalls, long openMillis) {
+		this.name = name;
+		this.window = new boolean[Math.max(1, windowSize)];
+		this.failureRate = failureRate;
+		this.minimumCalls = Math.min(Math.max(1, minimumCalls), window.length);
+		this.openMillis = openMillis;
+	}
+
+	// false means fail fast, true means go ahead and call record* when done, or release if the call is not made
+	public synchronized boolean tryAcquire() {
+		if (State.OPEN.equals(state)) {
+			if (System.currentTimeMillis() - openedAt < openMillis) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probing = false;
+		}
+		if (State.HALF_OPEN.equals(state)) {
+			if (probing) {
+				return false;
+			}
+			probing = true;
+		}
+		return true;
+	}
+
+	public void acquire() throws CircuitOpenException {
+		if (!tryAcquire()) {
+			throw new CircuitOpenException(this);
+		}
+	}
+
+	// for an acquire that did not end up making the call, so it counts for nothing but frees up the probe
+	public synchronized void release() {
+		if (State.HALF_OPEN.equals(state)) {
+			probing = false;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		if (State.HALF_OPEN.equals(state)) {
+			close();
+		}
+		else if (State.CLOSED.equals(state)) {
+			record(false);
+		}
+	}
+
+	public synchronized void recordFailure() {
+		if (State.HALF_OPEN.equals(state)) {
+			open();
+		}
+		else if (State.CLOSED.equals(state)) {
+			record(true);
+			if (calls >= minimumCalls && failures * 100 >= failureRate * calls) {
+				open();
+			}
+		}
+	}
+
+	private void record(boolean failure) {
+		if (calls == window.length) {
+			// push the oldest one out
+			if (window[next]) {
+				failures--;
+			}
+		}
+		else {
+			calls++;
+		}
+		window[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % window.length;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+		probing = false;
+		trips++;
+		LOG.warning("Opened " + this);
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		probing = false;
+		next = 0;
+		calls = 0;
+		failures = 0;
+		LOG.info("Closed " + this);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized boolean isOpen() {
+		return State.OPEN.equals(state);
+	}
+
+	public synchronized int getTrips() {
+		return trips;
+	}
+
+	public synchronized String toString() {
+		return name + " " + state + ", failures = " + failures + " of " + calls + ", trips = " + trips;
+	}
+}
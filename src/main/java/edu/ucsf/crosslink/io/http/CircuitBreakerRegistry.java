@@ -0,0 +1,84 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jsoup.HttpStatusException;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * One CircuitBreaker per host, shared by everything that reads from affiliation sites.
+ */
+@Singleton
+public class CircuitBreakerRegistry {
+
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private final int windowSize;
+	private final int failureRate;
+	private final int minimumCalls;
+	private final long openMillis;
+
+	@Inject
+	public CircuitBreakerRegistry(@Named("breakerWindowSize") Integer windowSize, @Named("breakerFailureRate") Integer failureRate,
+			@Named("breakerMinimumCalls") Integer minimumCalls, @Named("breakerOpenSeconds") Integer openSeconds) {
+		this.windowSize = windowSize;
+		this.failureRate = failureRate;
+		this.minimumCalls = minimumCalls;
+		this.openMillis = openSeconds * 1000L;
+	}
+
+	public CircuitBreaker forUrl(String url) {
+		String host = getHost(url);
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			breakers.putIfAbsent(host, new CircuitBreaker(host, windowSize, failureRate, minimumCalls, openMillis));
+			breaker = breakers.get(host);
+		}
+		return breaker;
+	}
+
+	public List<CircuitBreaker> getBreakers() {
+		List<CircuitBreaker> retval = new ArrayList<CircuitBreaker>(breakers.values());
+		Collections.sort(retval, new Comparator<CircuitBreaker>() {
+			public int compare(CircuitBreaker o1, CircuitBreaker o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		return retval;
+	}
+
+	private static String getHost(String url) {
+		try {
+			String host = new URI(url).getHost();
+			return host != null ? host.toLowerCase() : url;
+		}
+		catch (Exception e) {
+			return url;
+		}
+	}
+
+	// a 404 and the like means the host is up and answering, so only count overloads and connection problems
+	public static boolean isHostFailure(Throwable e) {
+		if (HostConcurrencyLimiter.isOverload(e)) {
+			return true;
+		}
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof HttpStatusException || t instanceof CircuitOpenException) {
+				return false;
+			}
+			else if (t instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,13 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.IOException;
+
+// thrown instead of making a request to a host that we know is down
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(CircuitBreaker breaker) {
+		super("Circuit open for " + breaker);
+	}
+}
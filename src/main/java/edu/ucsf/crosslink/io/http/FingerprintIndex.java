@@ -0,0 +1,91 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.rdf.model.Statement;
+
+/**
+ * A hash of what we last read for each researcher, kept on disk so that the next crawl can tell a page that has
+ * not changed even when the site does not give us an ETag or Last-Modified to ask with.  The html is normalized
+ * first so that scripts, hidden form state (ASP.NET view state on Profiles) and whitespace do not count as changes.
+ */
+public class FingerprintIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Pattern VOLATILE_HTML = Pattern.compile(
+			"(?is)<script.*?</script>|<input[^>]*type=[\"']?hidden[^>]*>|<!--.*?-->|\\s+");
+
+	private final TabFileMap fingerprints;
+
+	public FingerprintIndex(File directory) throws IOException {
+		fingerprints = new TabFileMap(new File(directory, "fingerprints.txt"), 1);
+	}
+
+	public boolean matches(String researcherURI, String fingerprint) {
+		String[] fields = fingerprints.get(researcherURI);
+		return fingerprint != null && fields != null && fingerprint.equals(fields[0]);
+	}
+
+	public void put(String researcherURI, String fingerprint) {
+		if (fingerprint != null) {
+			fingerprints.put(researcherURI, fingerprint);
+		}
+	}
+
+	public static String fingerprint(String html) {
+		return md5(VOLATILE_HTML.matcher(html).replaceAll(" "));
+	}
+
+	// sorted N-Triples with the blank node labels taken out, so the same RDF read twice gives the same answer
+	public static String fingerprint(Model model) {
+		List<String> triples = new ArrayList<String>();
+		StmtIterator it = model.listStatements();
+		try {
+			while (it.hasNext()) {
+				Statement statement = it.next();
+				triples.add(toString(statement.getSubject()) + " <" + statement.getPredicate().getURI() + "> " +
+						toString(statement.getObject()));
+			}
+		}
+		finally {
+			it.close();
+		}
+		Collections.sort(triples);
+		return md5(StringUtils.join(triples, "\n"));
+	}
+
+	private static String toString(RDFNode node) {
+		if (node.isAnon()) {
+			return "_:b";
+		}
+		return node.isURIResource() ? "<" + ((Resource)node).getURI() + ">" : node.asLiteral().toString();
+	}
+
+	private static String md5(String content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes(UTF8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every JVM has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
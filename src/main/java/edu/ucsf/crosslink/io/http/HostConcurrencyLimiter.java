@@ -0,0 +1,250 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.apache.jena.atlas.web.HttpException;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.jsoup.HttpStatusException;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import edu.ucsf.ctsi.r2r.jena.ResultSetConsumer;
+import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
+
+/**
+ * Limits how many requests we have outstanding against any one host, no matter which processor or affiliation
+ * they come from.  Each host's limit grows additively while responses come back with steady latency and is cut
+ * in half on a timeout, 5xx or 429 (AIMD), so fast sites get more parallelism and slow ones get left alone.  Like
+ * TCP it is cut at most once per round trip: requests that were already out when we backed off were sent under the
+ * old limit, so their failures do not cut it again.
+ */
+@Singleton
+public class HostConcurrencyLimiter {
+
+	private static final Logger LOG = Logger.getLogger(HostConcurrencyLimiter.class.getName());
+
+	private static final double BACKOFF_RATIO = 0.5;
+	// latency this many times the baseline counts as the host starting to struggle
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double LATENCY_SMOOTHING = 0.1;
+
+	private final ConcurrentMap<String, HostLimit> limits = new ConcurrentHashMap<String, HostLimit>();
+	private final int initialLimit;
+	private final int maxLimit;
+
+	@Inject
+	public HostConcurrencyLimiter(@Named("hostInitialLimit") Integer initialLimit, @Named("hostMaxLimit") Integer maxLimit) {
+		this.initialLimit = Math.max(1, initialLimit);
+		this.maxLimit = Math.max(this.initialLimit, maxLimit);
+	}
+
+	// blocks until the host of this url has room for one more request
+	public Permit acquire(String url) throws InterruptedException {
+		return getHostLimit(getHost(url)).acquire();
+	}
+
+	// null when the host has no room right now, for callers that must not wait
+	public Permit tryAcquire(String url) {
+		return getHostLimit(getHost(url)).tryAcquire();
+	}
+
+	public void select(SparqlQueryClient client, String url, String query, ResultSetConsumer consumer) throws Exception {
+		Permit permit = acquire(url);
+		Exception failure = null;
+		try {
+			client.select(query, consumer);
+		}
+		catch (Exception e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			permit.release(failure);
+		}
+	}
+
+	public List<HostLimit> getHostLimits() {
+		List<HostLimit> retval = new ArrayList<HostLimit>(limits.values());
+		Collections.sort(retval, new Comparator<HostLimit>() {
+			public int compare(HostLimit o1, HostLimit o2) {
+				return o1.getHost().compareTo(o2.getHost());
+			}
+		});
+		return retval;
+	}
+
+	/**
+	 * Gives the host of this url its own limits instead of hostInitialLimit and hostMaxLimit, a maxLimit of 0 lets
+	 * everything through.  Call it before anything is sent there.
+	 */
+	public void setLimits(String url, int initialLimit, int maxLimit) {
+		String host = getHost(url);
+		limits.put(host, new HostLimit(host, initialLimit, maxLimit));
+	}
+
+	private HostLimit getHostLimit(String host) {
+		HostLimit hostLimit = limits.get(host);
+		if (hostLimit == null) {
+			limits.putIfAbsent(host, new HostLimit(host, initialLimit, maxLimit));
+			hostLimit = limits.get(host);
+		}
+		return hostLimit;
+	}
+
+	private static String getHost(String url) {
+		try {
+			String host = new URI(url).getHost();
+			return host != null ? host.toLowerCase() : url;
+		}
+		catch (Exception e) {
+			return url;
+		}
+	}
+
+	// timeouts and server side errors mean back off, anything else (404 etc.) says nothing about load
+	static boolean isOverload(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof InterruptedIOException) {
+				// includes socket and connect timeouts
+				return true;
+			}
+			else if (t instanceof HttpStatusException) {
+				return isOverloadStatus(((HttpStatusException)t).getStatusCode());
+			}
+			else if (t instanceof QueryExceptionHTTP) {
+				return isOverloadStatus(((QueryExceptionHTTP)t).getResponseCode());
+			}
+			else if (t instanceof HttpException && ((HttpException)t).getResponseCode() > 0) {
+				return isOverloadStatus(((HttpException)t).getResponseCode());
+			}
+		}
+		return false;
+	}
+
+	private static boolean isOverloadStatus(int status) {
+		return status == 429 || status >= 500;
+	}
+
+	public final class HostLimit {
+
+		private final String host;
+		private final int maxLimit;
+		private double limit;
+		private int inFlight = 0;
+		private double latency = -1;
+		private double baseline = -1;
+		private int backoffs = 0;
+		private long lastBackoff = 0;
+
+		private HostLimit(String host, int initialLimit, int maxLimit) {
+			this.host = host;
+			this.maxLimit = maxLimit > 0 ? Math.max(Math.max(1, initialLimit), maxLimit) : Integer.MAX_VALUE;
+			this.limit = maxLimit > 0 ? Math.max(1, initialLimit) : Integer.MAX_VALUE;
+		}
+
+		private synchronized Permit acquire() throws InterruptedException {
+			while (inFlight >= (int)limit) {
+				wait();
+			}
+			inFlight++;
+			return new Permit(this);
+		}
+
+		private synchronized Permit tryAcquire() {
+			if (inFlight >= (int)limit) {
+				return null;
+			}
+			inFlight++;
+			return new Permit(this);
+		}
+
+		private synchronized void release(long started, long elapsed, Throwable failure) {
+			inFlight--;
+			if (!isLimited()) {
+				// nothing to adapt and nobody waiting
+				return;
+			}
+			if (failure != null && isOverload(failure)) {
+				if (started >= lastBackoff) {
+					limit = Math.max(1, limit * BACKOFF_RATIO);
+					lastBackoff = System.currentTimeMillis();
+					backoffs++;
+					LOG.info("Backing off " + this);
+				}
+			}
+			else if (failure == null) {
+				latency = latency < 0 ? elapsed : latency + LATENCY_SMOOTHING * (elapsed - latency);
+				// the baseline follows improvements right away and drifts up slowly
+				baseline = baseline < 0 ? latency : Math.min(latency, baseline + LATENCY_SMOOTHING * LATENCY_SMOOTHING * (latency - baseline));
+				if (latency <= baseline * LATENCY_TOLERANCE && inFlight + 1 >= (int)limit) {
+					// only grow when we are actually using what we have
+					limit = Math.min(maxLimit, limit + 1.0 / limit);
+				}
+			}
+			notifyAll();
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public boolean isLimited() {
+			return maxLimit < Integer.MAX_VALUE;
+		}
+
+		public synchronized int getLimit() {
+			return (int)limit;
+		}
+
+		public synchronized int getInFlight() {
+			return inFlight;
+		}
+
+		public synchronized long getLatency() {
+			return Math.round(Math.max(0, latency));
+		}
+
+		public synchronized int getBackoffs() {
+			return backoffs;
+		}
+
+		public synchronized String toString() {
+			return host + " limit = " + (isLimited() ? String.valueOf((int)limit) : "none") + ", in flight = " + inFlight + 
+					", latency = " + getLatency() + "ms, backoffs = " + backoffs;
+		}
+	}
+
+	/**
+	 * Release exactly once, passing the exception if the request failed.  Returns false if already released.
+	 */
+	public static final class Permit {
+
+		private final HostLimit hostLimit;
+		private final long started = System.currentTimeMillis();
+		// a timeout and a late callback can both try to release it
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Permit(HostLimit hostLimit) {
+			this.hostLimit = hostLimit;
+		}
+
+		public boolean release(Throwable failure) {
+			if (!released.compareAndSet(false, true)) {
+				return false;
+			}
+			hostLimit.release(started, System.currentTimeMillis() - started, failure);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * HTTP GETs for the pages we read from affiliation sites, over a pool of kept alive connections so that a crawl
+ * reuses a handful of sockets per host instead of opening one per page.  Each host gets its own cookie jar.
+ *
+ * This is the HttpClient 4.2 that Jena already brings in, which only does blocking I/O, so this is not a non-blocking
+ * client: every request in flight holds one of our threads, blocked on its socket until the response is read, and
+ * there are as many of those threads as pooled connections.  What callers get is a Future and an optional
+ * FutureCallback, so that the thread that asked for the page is not the one that waits on it.  The callback is
+ * called on the thread that ran the request, and should hand off anything that blocks.
+ */
+@Singleton
+public class PageFetcher {
+
+	private static final Logger LOG = Logger.getLogger(PageFetcher.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final DefaultHttpClient client;
+	private final ThreadPoolExecutor requests;
+	private final ScheduledExecutorService delayed;
+	private final ConcurrentMap<String, CookieStore> cookieJars = new ConcurrentHashMap<String, CookieStore>();
+
+	// the HostConcurrencyLimiter decides how many requests a host gets, so the pool lets each one have up to hostMaxLimit
+	@Inject
+	public PageFetcher(@Named("getDocumentTimeout") Integer timeout, @Named("hostMaxLimit") Integer hostMaxLimit,
+			@Named("httpMaxConnections") Integer maxConnections) {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, timeout);
+		HttpConnectionParams.setSoTimeout(params, timeout);
+		HttpConnectionParams.setSoKeepalive(params, true);
+		params.setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BROWSER_COMPATIBILITY);
+		PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
+		cm.setMaxTotal(maxConnections);
+		cm.setDefaultMaxPerRoute(Math.max(1, hostMaxLimit));
+		client = new DefaultHttpClient(cm, params);
+
+		ThreadFactory threadFactory = new DaemonThreadFactory();
+		// more threads than connections would just wait on the pool
+		requests = new ThreadPoolExecutor(maxConnections, maxConnections, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory);
+		requests.allowCoreThreadTimeOut(true);
+		delayed = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		LOG.info("Started with up to " + maxConnections + " connections");
+	}
+
+	public Future<Page> fetch(final String url, final Map<String, String> headers, FutureCallback<Page> callback) {
+		final BasicFuture<Page> future = new BasicFuture<Page>(callback);
+		requests.execute(new Runnable() {
+			public void run() {
+				try {
+					future.completed(get(url, headers));
+				}
+				catch (Exception e) {
+					future.failed(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	// runs task after the delay, on a thread that must not be kept waiting
+	public void later(Runnable task, long delayMillis) {
+		delayed.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private Page get(String url, Map<String, String> headers) throws IOException {
+		HttpGet get = new HttpGet(url);
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				get.addHeader(header.getKey(), header.getValue());
+			}
+		}
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute(ClientContext.COOKIE_STORE, getCookieJar(get.getURI().getHost()));
+		try {
+			return new Page(url, context, client.execute(get, context));
+		}
+		catch (IOException e) {
+			get.abort();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			get.abort();
+			throw e;
+		}
+	}
+
+	private CookieStore getCookieJar(String host) {
+		host = host != null ? host.toLowerCase() : "";
+		CookieStore jar = cookieJars.get(host);
+		if (jar == null) {
+			// BasicCookieStore is synchronized, so one jar can be used by many requests at once
+			cookieJars.putIfAbsent(host, new BasicCookieStore());
+			jar = cookieJars.get(host);
+		}
+		return jar;
+	}
+
+	/**
+	 * The parts of a response that we use, named the way Jsoup names them.  The url is where we ended up after any
+	 * redirects, which is what relative links in the page resolve against.
+	 */
+	public static final class Page {
+
+		private final String url;
+		private final int statusCode;
+		private final Header[] headers;
+		private final byte[] body;
+		private final Charset charset;
+
+		private Page(String requestUrl, HttpContext context, HttpResponse response) throws IOException {
+			this.url = getFinalUrl(requestUrl, context);
+			this.statusCode = response.getStatusLine().getStatusCode();
+			this.headers = response.getAllHeaders();
+			HttpEntity entity = response.getEntity();
+			// reading it all gives the connection back to the pool
+			this.body = entity != null ? EntityUtils.toByteArray(entity) : new byte[0];
+			this.charset = entity != null ? ContentType.getOrDefault(entity).getCharset() : null;
+		}
+
+		// the last request sent after following redirects, its URI is relative to the host it went to
+		private static String getFinalUrl(String requestUrl, HttpContext context) {
+			HttpUriRequest request = (HttpUriRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+			HttpHost host = (HttpHost)context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+			if (request == null) {
+				return requestUrl;
+			}
+			URI uri = request.getURI();
+			return uri.isAbsolute() || host == null ? uri.toString() : host.toURI() + uri;
+		}
+
+		public String url() {
+			return url;
+		}
+
+		public int statusCode() {
+			return statusCode;
+		}
+
+		public String header(String name) {
+			for (Header header : headers) {
+				if (header.getName().equalsIgnoreCase(name)) {
+					return header.getValue();
+				}
+			}
+			return null;
+		}
+
+		public String body() {
+			return new String(body, charset != null ? charset : UTF8);
+		}
+
+		// without a charset in the Content-Type Jsoup looks for one in the page
+		public Document parse() throws IOException {
+			return Jsoup.parse(new ByteArrayInputStream(body), charset != null ? charset.name() : null, url);
+		}
+	}
+
+	private static final class DaemonThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PageFetcher-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,20 +1,30 @@
 package edu.ucsf.crosslink.io.http;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.http.NameValuePair;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.FileManager;
 import org.apache.http.client.utils.URIBuilder;
 import org.jsoup.Connection;
+import org.jsoup.HttpStatusException;
 import org.jsoup.Jsoup;
 import org.jsoup.Connection.Response;
 import org.jsoup.nodes.Document;
@@ -24,6 +34,7 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 import edu.ucsf.crosslink.io.ImportCert;
+import edu.ucsf.crosslink.io.http.PageFetcher.Page;
 import edu.ucsf.crosslink.model.Affiliation;
 import edu.ucsf.crosslink.model.Affiliation.RNSType;
 import edu.ucsf.crosslink.model.Researcher;
@@ -33,12 +44,18 @@ public class SiteReader implements R2RConstants {
 	
 	private static final Logger LOG = Logger.getLogger(SiteReader.class.getName());
 
-	private Map<String, String> cookies = new HashMap<String, String>();	
+	// how soon a retry looks again when its host has no room
+	private static final long RETRY_POLL_MILLIS = 100;
 
 	private int getDocumentRetry = 10;
-	private int getDocumentTimeout = 15000;
 	private int getDocumentSleep = 1000;
 	
+	private PageFetcher fetcher = null;
+	private HostConcurrencyLimiter limiter = null;
+	private CircuitBreakerRegistry breakers = null;
+	private ValidatorCache validatorCache = null;
+	private FingerprintIndex fingerprintIndex = null;
+	
 	private static Map<RNSType, ImageFinder> imageFinders = new HashMap<RNSType, ImageFinder>();
 	private static List<ImageFinder> baseImageFinders = null;
 	
@@ -132,33 +149,200 @@ public class SiteReader implements R2RConstants {
 	}	
 	
 	@Inject
-	public SiteReader(@Named("getDocumentRetry") Integer getDocumentRetry, @Named("getDocumentTimeout") Integer getDocumentTimeout, 
-			@Named("getDocumentSleep") Integer getDocumentSleep) {
+	public SiteReader(@Named("getDocumentRetry") Integer getDocumentRetry, 
+			@Named("getDocumentSleep") Integer getDocumentSleep, PageFetcher fetcher, HostConcurrencyLimiter limiter, CircuitBreakerRegistry breakers) {
 		this.getDocumentRetry = getDocumentRetry;
-		this.getDocumentTimeout = getDocumentTimeout;
 		this.getDocumentSleep = getDocumentSleep;
+		this.fetcher = fetcher;
+		this.limiter = limiter;
+		this.breakers = breakers;
+	}
+	
+	// blank validatorCacheDir always downloads the whole page
+	@Inject(optional=true)
+	public void setValidatorCacheDir(@Named("validatorCacheDir") String validatorCacheDir) throws IOException {
+		if (validatorCacheDir != null && validatorCacheDir.trim().length() > 0) {
+			validatorCache = new ValidatorCache(new File(validatorCacheDir.trim()));
+		}
+	}
+	
+	// blank fingerprintDir always does the full pass over a page, even when it has not changed
+	@Inject(optional=true)
+	public void setFingerprintDir(@Named("fingerprintDir") String fingerprintDir) throws IOException {
+		if (fingerprintDir != null && fingerprintDir.trim().length() > 0) {
+			fingerprintIndex = new FingerprintIndex(new File(fingerprintDir.trim()));
+		}
 	}
 	
 	public Document getDocument(String url) throws IOException, InterruptedException  {
-    	int attempts = 0;
-    	Document doc = null;
-    	while (attempts++ < getDocumentRetry) {
-        	try {
-        	    Connection connection = Jsoup.connect(url);
-        	    for (Entry<String, String> cookie : cookies.entrySet()) {
-        	        connection.cookie(cookie.getKey(), cookie.getValue());
-        	    }
-        	    Response response = connection.timeout(getDocumentTimeout).execute();
-        	    cookies.putAll(response.cookies());
-        	    doc = response.parse();
-        		break;
-        	}
-        	catch (java.net.SocketTimeoutException ex) {
-        		LOG.info("Trying " + url + " one more time... " + attempts);
-        		Thread.sleep(getDocumentSleep);
-        	}
-    	}
-    	return doc;
+		Page page = getResponse(url);
+		return page != null ? page.parse() : null;
+	}
+	
+	// downloads the page without parsing it so that the network and parsing work can be done separately
+	public Page getResponse(String url) throws IOException, InterruptedException  {
+		return await(getResponse(url, null, null));
+	}
+	
+	// the page, or null when every attempt timed out
+	public static Page await(Future<Page> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			else if (cause instanceof InterruptedException) {
+				throw (InterruptedException)cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+	
+	// with a validator the request is conditional and the page might be a 304 with no body, see isNotModified
+	private Future<Page> getResponse(String url, ValidatorCache.Validator validator, FutureCallback<Page> callback) {
+		Map<String, String> headers = new HashMap<String, String>();
+		if (validator != null) {
+			if (validator.getETag() != null) {
+				headers.put("If-None-Match", validator.getETag());
+			}
+			if (validator.getLastModified() != null) {
+				headers.put("If-Modified-Since", validator.getLastModified());
+			}
+		}
+		BasicFuture<Page> future = new BasicFuture<Page>(callback);
+		attempt(url, headers, future, 1);
+		return future;
+	}
+	
+	// the first attempt waits for room on the caller's thread, the request itself then blocks a PageFetcher thread
+	private void attempt(final String url, final Map<String, String> headers, final BasicFuture<Page> future, final int attempts) {
+		final HostConcurrencyLimiter.Permit permit;
+		if (attempts == 1) {
+			try {
+				permit = limiter.acquire(url);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.failed(e);
+				return;
+			}
+		}
+		else {
+			// retries run on the PageFetcher timer, which is shared by every host and so can not wait
+			permit = limiter.tryAcquire(url);
+			if (permit == null) {
+				retryLater(url, headers, future, attempts, RETRY_POLL_MILLIS);
+				return;
+			}
+		}
+		final CircuitBreaker breaker = breakers.forUrl(url);
+		try {
+			// fail fast when the host is known to be down rather than waiting on the timeouts
+			breaker.acquire();
+		}
+		catch (CircuitOpenException e) {
+			// we never called the host, so this says nothing about its load
+			permit.release(e);
+			future.failed(e);
+			return;
+		}
+		try {
+			fetch(url, headers, future, attempts, breaker, permit);
+		}
+		catch (RuntimeException e) {
+			// the fetcher would not take it, so the host was never called
+			permit.release(e);
+			breaker.release();
+			future.failed(e);
+		}
+	}
+	
+	private void fetch(final String url, final Map<String, String> headers, final BasicFuture<Page> future, final int attempts,
+			final CircuitBreaker breaker, final HostConcurrencyLimiter.Permit permit) {
+		fetcher.fetch(url, headers, new FutureCallback<Page>() {
+			public void completed(Page page) {
+				// what Jsoup would have thrown, a 304 is not an error
+				HttpStatusException failure = page.statusCode() >= 400 ? 
+						new HttpStatusException("HTTP error fetching URL", page.statusCode(), url) : null;
+				release(breaker, permit, failure);
+				if (failure != null) {
+					future.failed(failure);
+				}
+				else {
+					future.completed(page);
+				}
+			}
+			
+			public void failed(Exception e) {
+				release(breaker, permit, e);
+				// ConnectionPoolTimeoutException is a ConnectTimeoutException, and both are worth another try
+				if (!(e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException)) {
+					future.failed(e);
+				}
+				else if (attempts < getDocumentRetry) {
+					LOG.info("Trying " + url + " one more time... " + attempts);
+					retryLater(url, headers, future, attempts + 1, getDocumentSleep);
+				}
+				else {
+					future.completed(null);
+				}
+			}
+			
+			public void cancelled() {
+				release(breaker, permit, null);
+				future.cancel();
+			}
+		});
+	}
+	
+	private void retryLater(final String url, final Map<String, String> headers, final BasicFuture<Page> future, 
+			final int attempts, long delayMillis) {
+		fetcher.later(new Runnable() {
+			public void run() {
+				attempt(url, headers, future, attempts);
+			}
+		}, delayMillis);
+	}
+	
+	// reads RDF through the same breaker and limiter as the pages
+	public Model readModel(String url) throws IOException, InterruptedException {
+		HostConcurrencyLimiter.Permit permit = limiter.acquire(url);
+		CircuitBreaker breaker = breakers.forUrl(url);
+		try {
+			breaker.acquire();
+		}
+		catch (CircuitOpenException e) {
+			permit.release(e);
+			throw e;
+		}
+		Exception failure = null;
+		try {
+			return FileManager.get().loadModel(url);
+		}
+		catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			release(breaker, permit, failure);
+		}
+	}
+	
+	private static void release(CircuitBreaker breaker, HostConcurrencyLimiter.Permit permit, Exception failure) {
+		if (permit.release(failure)) {
+			if (failure != null && CircuitBreakerRegistry.isHostFailure(failure)) {
+				breaker.recordFailure();
+			}
+			else {
+				breaker.recordSuccess();
+			}
+		}
 	}
 	
 	public String getFavicon(String url) throws IOException, InterruptedException   {
@@ -175,9 +359,7 @@ public class SiteReader implements R2RConstants {
 			}		
 			// worth a try, see if we can open default favico location
 			String favico = urlObj.getProtocol() + "://" + urlObj.getHost() + "/favicon.ico";
-			InputStream is = new URL(favico).openStream();
-			is.close();
-			return favico;
+			return getResponse(favico) != null ? favico : null;
 		}
 		catch (IOException e) {
 			LOG.log(Level.WARNING, "Tried to load default favico for " + url + " and failed, oh well.", e.getMessage());
@@ -212,6 +394,20 @@ public class SiteReader implements R2RConstants {
     
     // this should arguably be the source of the verifiedDT
     public void getPageItems(Researcher researcher) throws IOException, InterruptedException {    	
+    	readPageItems(researcher, fetchPageItems(researcher));
+    }
+    
+    public Page fetchPageItems(Researcher researcher) throws IOException, InterruptedException {    	
+    	return await(fetchPageItems(researcher, null));
+    }
+    
+    // the caller does not wait for the page, a PageFetcher thread does and calls callback once it is here (or has failed)
+    public Future<Page> fetchPageItems(Researcher researcher, FutureCallback<Page> callback) throws MalformedURLException {    	
+    	String uri = getPageItemsURL(researcher);
+    	return getResponse(uri, validatorCache != null ? validatorCache.get(uri) : null, callback);
+    }
+    
+    private static String getPageItemsURL(Researcher researcher) throws MalformedURLException {
     	String uri = researcher.getURI();
     	
     	// hacks to fix bad URI's
@@ -224,8 +420,51 @@ public class SiteReader implements R2RConstants {
     		URL url = new URL(uri);
     		uri = url.getProtocol() + "://" + url.getHost() + "/vivo" + url.getPath();
     	}
-    	
-    	Document doc = getDocument(uri);
+    	return uri;
+    }
+    
+    public boolean isNotModified(Page response) {
+    	return response != null && response.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+    
+    // hold on to this until what came from the page is stored, then hand it to rememberPageItems
+    public ValidatorCache.Validator getValidator(Page response) {
+    	return validatorCache != null && response != null ? 
+    			ValidatorCache.Validator.create(response.header("ETag"), response.header("Last-Modified")) : null;
+    }
+    
+    // the next fetchPageItems for this researcher will be conditional on the page still matching validator
+    public void rememberPageItems(Researcher researcher, ValidatorCache.Validator validator) throws MalformedURLException {
+    	if (validatorCache != null && validator != null) {
+    		validatorCache.put(getPageItemsURL(researcher), validator);
+    	}
+    }
+    
+    // null when we are not keeping fingerprints
+    public String getFingerprint(Page response) {
+    	return fingerprintIndex != null && response != null ? FingerprintIndex.fingerprint(response.body()) : null;
+    }
+    
+    // for a page that links to RDF with the rest of what we want in it
+    public String getFingerprint(Document doc, Model model) {
+    	return fingerprintIndex != null ? 
+    			FingerprintIndex.fingerprint(doc.outerHtml()) + FingerprintIndex.fingerprint(model) : null;
+    }
+    
+    // true when what we read for this researcher is the same as what we stored last time
+    public boolean isUnchanged(String researcherURI, String fingerprint) {
+    	return fingerprintIndex != null && fingerprintIndex.matches(researcherURI, fingerprint);
+    }
+    
+    // like rememberPageItems, only once what the fingerprint was taken from is stored
+    public void rememberFingerprint(String researcherURI, String fingerprint) {
+    	if (fingerprintIndex != null) {
+    		fingerprintIndex.put(researcherURI, fingerprint);
+    	}
+    }
+    
+    public void readPageItems(Researcher researcher, Page response) throws IOException {    	
+    	Document doc = response.parse();
 		researcher.setHomepage(doc.location());
 		researcher.addImageURL(getImage(doc, researcher.getAffiliation().getRNSType()));
     }
@@ -0,0 +1,157 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A map from a url or uri to a few strings, kept on disk as an append only tab separated file where the latest line
+ * for a key wins.  The file is rewritten on open when it has grown well past one line per key.  Tabs and line breaks in
+ * the values are turned into spaces, and empty values come back as null.
+ */
+final class TabFileMap {
+
+	private static final Logger LOG = Logger.getLogger(TabFileMap.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEPARATOR = "\t";
+	private static final int FLUSH_INTERVAL = 100;
+
+	private final File file;
+	private final int width;
+	private final Map<String, String[]> values = new ConcurrentHashMap<String, String[]>();
+	private Writer writer = null;
+	private int lines = 0;
+	private int unflushed = 0;
+
+	TabFileMap(File file, int width) throws IOException {
+		this.file = file;
+		this.width = width;
+		file.getParentFile().mkdirs();
+		boolean partial = false;
+		if (file.exists()) {
+			// a line cut short when we went down is dropped, and the file rewritten so that the next one we write 
+			// does not get glued onto it
+			partial = !endsWithNewline();
+			read(partial);
+		}
+		if (!file.exists() || partial || lines > 2 * values.size() + FLUSH_INTERVAL) {
+			compact();
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+		LOG.info("Loaded " + values.size() + " entries from " + file);
+	}
+
+	String[] get(String key) {
+		return key != null ? values.get(key) : null;
+	}
+
+	synchronized void put(String key, String... fields) {
+		String[] cleaned = new String[width];
+		for (int i = 0; i < width; i++) {
+			cleaned[i] = i < fields.length ? clean(fields[i]) : null;
+		}
+		if (Arrays.equals(cleaned, values.put(key, cleaned))) {
+			return;
+		}
+		try {
+			write(writer, key, cleaned);
+			lines++;
+			if (++unflushed >= FLUSH_INTERVAL) {
+				writer.flush();
+				unflushed = 0;
+			}
+		}
+		catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to write " + key + " to " + file, e);
+		}
+	}
+
+	private void read(boolean partial) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String line;
+			String next = reader.readLine();
+			while ((line = next) != null) {
+				next = reader.readLine();
+				if (next == null && partial) {
+					break;
+				}
+				lines++;
+				String[] split = line.split(SEPARATOR, -1);
+				if (split.length != width + 1) {
+					// partially written line from when we went down
+					continue;
+				}
+				String[] fields = new String[width];
+				for (int i = 0; i < width; i++) {
+					fields[i] = split[i + 1].length() > 0 ? split[i + 1] : null;
+				}
+				values.put(split[0], fields);
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() == 0) {
+				return true;
+			}
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer compacted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+		try {
+			for (Map.Entry<String, String[]> entry : values.entrySet()) {
+				write(compacted, entry.getKey(), entry.getValue());
+			}
+		}
+		finally {
+			compacted.close();
+		}
+		if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+			throw new IOException("Unable to replace " + file + " with " + tmp);
+		}
+		lines = values.size();
+	}
+
+	private static void write(Writer writer, String key, String[] fields) throws IOException {
+		StringBuilder line = new StringBuilder(key);
+		for (String field : fields) {
+			line.append(SEPARATOR).append(field != null ? field : "");
+		}
+		writer.write(line.append("\n").toString());
+	}
+
+	private static String clean(String value) {
+		if (value == null) {
+			return null;
+		}
+		value = value.replaceAll("[\\t\\r\\n]", " ").trim();
+		return value.length() > 0 ? value : null;
+	}
+}
@@ -0,0 +1,67 @@
+package edu.ucsf.crosslink.io.http;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The ETag and Last-Modified that came back with each page we have stored, kept on disk so that the next crawl can
+ * ask for the page conditionally and get a 304 when it has not changed.
+ */
+public class ValidatorCache {
+
+	private final TabFileMap validators;
+
+	public ValidatorCache(File directory) throws IOException {
+		validators = new TabFileMap(new File(directory, "validators.txt"), 2);
+	}
+
+	public Validator get(String url) {
+		String[] fields = validators.get(url);
+		return fields != null ? Validator.create(fields[0], fields[1]) : null;
+	}
+
+	public void put(String url, Validator validator) {
+		validators.put(url, validator.etag, validator.lastModified);
+	}
+
+	public static final class Validator {
+
+		private final String etag;
+		private final String lastModified;
+
+		// null if the response did not give us anything to validate with
+		public static Validator create(String etag, String lastModified) {
+			etag = StringUtils.trimToNull(etag);
+			lastModified = StringUtils.trimToNull(lastModified);
+			return etag != null || lastModified != null ? new Validator(etag, lastModified) : null;
+		}
+
+		private Validator(String etag, String lastModified) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Validator)) {
+				return false;
+			}
+			Validator other = (Validator)o;
+			return (etag == null ? other.etag == null : etag.equals(other.etag)) &&
+					(lastModified == null ? other.lastModified == null : lastModified.equals(other.lastModified));
+		}
+
+		public int hashCode() {
+			return (etag != null ? etag.hashCode() : 0) * 31 + (lastModified != null ? lastModified.hashCode() : 0);
+		}
+	}
+}
@@ -30,8 +30,10 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
+import edu.ucsf.crosslink.io.SparqlPersistance;
 import edu.ucsf.crosslink.processor.controller.ProcessorController;
 import edu.ucsf.crosslink.processor.controller.ProcessorControllerFactory;
+import edu.ucsf.crosslink.processor.controller.SharedCrawlPool;
 import edu.ucsf.crosslink.web.Stoppable;
 
 @Singleton
@@ -48,6 +50,8 @@ public class Quartz implements Runnable, Stoppable {
 	private Set<String> forcedProcessorControllers = new HashSet<String>();
 	private final Scheduler scheduler;
 	private ProcessorControllerFactory controllerFactory;
+	private SharedCrawlPool sharedCrawlPool;
+	private SparqlPersistance store;
 
 	private static LinkedList<String> metaControllerHistory = new LinkedList<String>();
 	
@@ -57,12 +61,15 @@ public class Quartz implements Runnable, Stoppable {
 	
 	@Inject
 	public Quartz(final SchedulerFactory factory, final GuiceJobFactory jobFactory,
-			@Named("scanInterval") Integer scanInterval, ProcessorControllerFactory controllerFactory) throws SchedulerException {
+			@Named("scanInterval") Integer scanInterval, ProcessorControllerFactory controllerFactory, 
+			SharedCrawlPool sharedCrawlPool, SparqlPersistance store) throws SchedulerException {
 		scheduler = factory.getScheduler();
 		scheduler.setJobFactory(jobFactory);		
 		scheduler.start();
 
 		this.controllerFactory = controllerFactory;
+		this.sharedCrawlPool = sharedCrawlPool;
+		this.store = store;
 		
 		// this thing should only ever need one thread
 		// we run the config refresh outside of quartz so that it won't be blocked
@@ -84,10 +91,13 @@ public class Quartz implements Runnable, Stoppable {
 			configRefreshExecutors.shutdownNow();
 			scheduler.shutdown();		
 			forcedExecutors.shutdown();
+			sharedCrawlPool.shutdown();
 		} catch (SchedulerException e) {
 			// ... handle it
 			LOG.log(Level.SEVERE, e.getMessage(), e);
 		}
+		// whatever is still buffered goes out before we do
+		store.shutdown();
 	}
 
 	private Set<String> getScheduledJobNames() throws SchedulerException {
@@ -10,6 +10,7 @@ import com.google.inject.AbstractModule;
 import com.google.inject.name.Names;
 
 import edu.ucsf.crosslink.processor.controller.ProcessorControllerFactory;
+import edu.ucsf.crosslink.processor.controller.SharedCrawlPool;
 import edu.ucsf.crosslink.web.Stoppable;
 
 public class QuartzModule extends AbstractModule {
@@ -23,6 +24,7 @@ public class QuartzModule extends AbstractModule {
 	@Override
 	protected void configure() {
 		bind(ProcessorControllerFactory.class).asEagerSingleton();
+		bind(SharedCrawlPool.class).asEagerSingleton();
 		
 		bind(Integer.class).annotatedWith(Names.named("scanInterval")).toInstance(Integer.parseInt(prop.getProperty("scanInterval")));
 
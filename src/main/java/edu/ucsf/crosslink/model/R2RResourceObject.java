@@ -4,15 +4,16 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jena.datatypes.xsd.XSDDateTime;
-import org.apache.jena.ontology.OntModel;
-import org.apache.jena.ontology.OntProperty;
 import org.apache.jena.ontology.Restriction;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Property;
@@ -29,17 +30,23 @@ public abstract class R2RResourceObject implements R2RConstants {
 
 	private Resource resource = null;
 	private URI uriObj;
+	// typed objects follow the R2R ontology, so their restrictions apply when saving
+	private boolean typed = false;
 	
 	// for debugging
 	private static final Logger LOG = Logger.getLogger(R2RResourceObject.class.getName());
 	private static AtomicLong objectCount = new AtomicLong();
 	
-	private R2RResourceObject(String uri, boolean ontModel) throws URISyntaxException {
+	private static final Set<String> MAX_CARDINALITY_PREDICATES = loadMaxCardinalityPredicates();
+	
+	private R2RResourceObject(String uri, boolean typed) throws URISyntaxException {
 		this.uriObj = new URI(uri);
-		Model model = ontModel ? R2ROntology.createR2ROntModel() : R2ROntology.createDefaultModel();
-		resource = model.createResource(uri);			
+		this.typed = typed;
+		// a plain model holding just our own triples, we used to build a whole OntModel per object just to look up 
+		// restrictions, and with thousands of researchers in flight that is what ran us out of memory
+		resource = R2ROntology.createDefaultModel().createResource(uri);			
 		if (objectCount.incrementAndGet() % 100 == 0) {
-			LOG.info("Object count at " + objectCount.get() + ", just added " + uri + " ontModel " + ontModel);
+			LOG.info("Object count at " + objectCount.get() + ", just added " + uri + " typed " + typed);
 		}
 	}
 
@@ -102,19 +109,21 @@ public abstract class R2RResourceObject implements R2RConstants {
 	}
     
     public boolean hasMaxCardinalityRestriction(String predicate) {
-    	Model model = getModel();
-    	if (model instanceof OntModel) {
-    		OntProperty prop = ((OntModel)model).getOntProperty(predicate);
-    		if (prop != null) {
-    			Iterator<Restriction> i = prop.listReferringRestrictions();
-    			while (i.hasNext()) {
-    			    Restriction r = i.next();
-    			    if (r.isMaxCardinalityRestriction())
-    			    	return true;
-    			}
-    		}    		
+    	return typed && MAX_CARDINALITY_PREDICATES.contains(predicate);
+    }
+    
+    // the ontology does not change while we run, so walk its restrictions once instead of on every save
+    private static Set<String> loadMaxCardinalityPredicates() {
+    	Set<String> predicates = new HashSet<String>();
+    	Iterator<Restriction> i = R2ROntology.createR2ROntModel().listRestrictions();
+    	while (i.hasNext()) {
+    		Restriction r = i.next();
+    		if (r.isMaxCardinalityRestriction() && r.getOnProperty() != null) {
+    			predicates.add(r.getOnProperty().getURI());
+    		}
     	}
-    	return false;
+    	LOG.info("Max cardinality restrictions on " + predicates);
+    	return Collections.unmodifiableSet(predicates);
     }
 	
 	protected Resource getResource() {
@@ -9,7 +9,7 @@ public abstract class BasicResearcherProcessor implements ResearcherProcessor {
 
 	// DO NOT STORE Researcher in this object or it's descendants!!!!!!!!!!!!!!!!!!!!!!!
 	// If you do, will hog up all the memory and get an out of memory exception
-	// Researcher is a Jena Model object, so it is huge.
+	// Researcher is backed by a Jena Model, smaller than it used to be but still not something to keep around.
 	// these objects need to be lightweight because we generate tons of them
 	
 	private String researcherURI = null;
@@ -31,7 +31,7 @@ public abstract class BasicResearcherProcessor implements ResearcherProcessor {
 		return processorController;
 	}
 	
-	protected String getResearcherURI() {
+	public String getResearcherURI() {
 		return researcherURI;
 	}
 	
@@ -39,10 +39,15 @@ public abstract class BasicResearcherProcessor implements ResearcherProcessor {
 		return processorController != null ? processorController.allowSkip() : false;
 	}
 	
+	// true if our controller processed this researcher in the last daysConsideredOld days
+	protected boolean processedWithin(int daysConsideredOld) {
+		return processorController != null ? processorController.processedWithin(researcherURI, daysConsideredOld) : false;
+	}
+	
 	protected Researcher createResearcher() throws URISyntaxException {
 		Researcher researcher = new Researcher(researcherURI);
 		if (processorController != null) {
-			researcher.crawledBy(processorController);
+			processorController.logCrawl(researcher);
 		}
 		return researcher;
 	}
@@ -6,8 +6,10 @@ import com.google.inject.AbstractModule;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 
+import edu.ucsf.crosslink.io.ModelUploader;
 import edu.ucsf.crosslink.job.quartz.ProcessorControllerJob;
 import edu.ucsf.crosslink.processor.controller.ProcessorController;
+import edu.ucsf.crosslink.processor.iterator.SparqlProcessor;
 
 public class ProcessorModule extends AbstractModule {
 
@@ -33,6 +35,22 @@ public class ProcessorModule extends AbstractModule {
 		bind(Integer.class).annotatedWith(Names.named("errorsToAbort")).toInstance(Integer.parseInt(prop.getProperty("errorsToAbort")));
 		bind(Integer.class).annotatedWith(Names.named("pauseOnAbort")).toInstance(Integer.parseInt(prop.getProperty("pauseOnAbort")));
 		bind(Integer.class).annotatedWith(Names.named("threadCount")).toInstance(Integer.parseInt(prop.getProperty("threadCount")));
+		bind(ProcessorController.ExecutorType.class).toInstance(ProcessorController.ExecutorType.valueOf(prop.getProperty("executorType", "POOL").toUpperCase()));
+		bind(Integer.class).annotatedWith(Names.named("concurrencyLimit")).toInstance(Integer.parseInt(prop.getProperty("concurrencyLimit", "1000")));
+		bind(Integer.class).annotatedWith(Names.named("poolWeight")).toInstance(Integer.parseInt(prop.getProperty("poolWeight", "1")));
+		bind(Integer.class).annotatedWith(Names.named("fetchThreadCount")).toInstance(Integer.parseInt(prop.getProperty("fetchThreadCount", "4")));
+		bind(Integer.class).annotatedWith(Names.named("transformThreadCount")).toInstance(Integer.parseInt(prop.getProperty("transformThreadCount", "2")));
+		bind(Integer.class).annotatedWith(Names.named("persistThreadCount")).toInstance(Integer.parseInt(prop.getProperty("persistThreadCount", "2")));
+		bind(SparqlProcessor.Pagination.class).toInstance(SparqlProcessor.Pagination.valueOf(prop.getProperty("pagination", "OFFSET").toUpperCase()));
+		bind(Integer.class).annotatedWith(Names.named("prefetchDepth")).toInstance(Integer.parseInt(prop.getProperty("prefetchDepth", "0")));
+		bind(Integer.class).annotatedWith(Names.named("partitions")).toInstance(Integer.parseInt(prop.getProperty("partitions", "1")));
+		bind(Integer.class).annotatedWith(Names.named("streamBufferSize")).toInstance(Integer.parseInt(prop.getProperty("streamBufferSize", "0")));
+		bind(ModelUploader.Format.class).toInstance(ModelUploader.Format.valueOf(prop.getProperty("uploadFormat", "NTRIPLES").toUpperCase()));
+		bind(Integer.class).annotatedWith(Names.named("retryAttempts")).toInstance(Integer.parseInt(prop.getProperty("retryAttempts", "3")));
+		bind(Integer.class).annotatedWith(Names.named("retryDelay")).toInstance(Integer.parseInt(prop.getProperty("retryDelay", "30000")));
+		bind(Integer.class).annotatedWith(Names.named("retryMaxDelay")).toInstance(Integer.parseInt(prop.getProperty("retryMaxDelay", "600000")));
+		bind(Integer.class).annotatedWith(Names.named("stageQueueDepth")).toInstance(Integer.parseInt(prop.getProperty("stageQueueDepth", "100")));
+		bind(Integer.class).annotatedWith(Names.named("fetchesInFlight")).toInstance(Integer.parseInt(prop.getProperty("fetchesInFlight", "100")));
 		
 		try {
 			bind(new TypeLiteral<Iterable<ResearcherProcessor>>(){}).to((Class<? extends Iterable<ResearcherProcessor>>)Class.forName(prop.getProperty("class"))).asEagerSingleton();
@@ -13,6 +13,9 @@ public interface ResearcherProcessor extends R2RConstants {
 	
 	void setCrawler(ProcessorController processorController);
 	
+	// stable identifier for the researcher this will process, used to resume interrupted crawls
+	String getResearcherURI();
+	
 	OutputType processResearcher() throws Exception;
 
 }
@@ -0,0 +1,66 @@
+package edu.ucsf.crosslink.processor;
+
+import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
+
+/**
+ * A researcher processor whose work is split into a network bound fetch, a CPU bound transform and a
+ * store bound persist so that a ResearcherPipeline can run each stage on its own sized pool.
+ * Each stage returns null to hand the researcher on to the next stage, or the final OutputType to stop early.
+ *
+ * Unlike BasicResearcherProcessor these do hold on to the Researcher between stages, so release() must drop it
+ * once the researcher has left the pipeline.
+ */
+public abstract class StagedResearcherProcessor extends BasicResearcherProcessor {
+
+	public enum Stage {
+		FETCH, TRANSFORM, PERSIST;
+	}
+
+	protected StagedResearcherProcessor(String researcherURI) {
+		super(researcherURI);
+	}
+
+	protected abstract OutputType fetch() throws Exception;
+
+	/**
+	 * Starts the fetch without waiting for it and runs whenFetched once it has come back (or failed), after which
+	 * fetch() is called and should not block.  This keeps the fetch stage from holding a thread while a request is
+	 * out.  Returns false to have fetch() do all of the work instead.
+	 */
+	public boolean startFetch(Runnable whenFetched) throws Exception {
+		return false;
+	}
+
+	protected abstract OutputType transform() throws Exception;
+
+	protected abstract OutputType persist() throws Exception;
+
+	// drop anything that was held between stages
+	public abstract void release();
+
+	public OutputType runStage(Stage stage) throws Exception {
+		switch (stage) {
+			case FETCH : return fetch();
+			case TRANSFORM : return transform();
+			default :
+				OutputType action = persist();
+				return action != null ? action : OutputType.PROCESSED;
+		}
+	}
+
+	// runs all of the stages in line, for when the controller is not using a pipeline
+	public OutputType processResearcher() throws Exception {
+		try {
+			for (Stage stage : Stage.values()) {
+				OutputType action = runStage(stage);
+				if (action != null) {
+					return action;
+				}
+			}
+			return OutputType.PROCESSED;
+		}
+		finally {
+			release();
+		}
+	}
+}
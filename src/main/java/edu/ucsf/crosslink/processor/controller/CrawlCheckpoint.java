@@ -0,0 +1,217 @@
+package edu.ucsf.crosslink.processor.controller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
+
+/**
+ * Local, append only record of which researchers a ProcessorController has finished in its current run.
+ * If the run is cut short (redeploy, crash) the next run reloads the file and passes over the researchers
+ * that are already done instead of starting from scratch.  The file is removed once a run finishes.
+ *
+ * For a query paged by key it also keeps the last key of the pages where every researcher is done, so that the
+ * next run can start its query after that instead of reading all of those pages again just to pass over them.
+ */
+public class CrawlCheckpoint {
+
+	private static final Logger LOG = Logger.getLogger(CrawlCheckpoint.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEPARATOR = "\t";
+	private static final String RESUME_AFTER = "RESUME_AFTER";
+
+	private final File file;
+	private final int flushInterval;
+	private final Map<String, OutputType> completed = new ConcurrentHashMap<String, OutputType>();
+	// pages read but not finished yet, oldest first
+	private final LinkedList<OpenPage> openPages = new LinkedList<OpenPage>();
+	private String resumeKey = null;
+
+	private Writer writer = null;
+	private int unflushed = 0;
+
+	public CrawlCheckpoint(File directory, String name, int flushInterval) {
+		directory.mkdirs();
+		this.file = new File(directory, name + ".checkpoint");
+		this.flushInterval = flushInterval;
+	}
+
+	// returns the number of researchers we are resuming past
+	public synchronized int open() throws IOException {
+		completed.clear();
+		openPages.clear();
+		resumeKey = null;
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int ndx = line.indexOf(SEPARATOR);
+					if (line.startsWith("#") || ndx < 0) {
+						continue;
+					}
+					if (RESUME_AFTER.equals(line.substring(0, ndx))) {
+						// the last one is the furthest we got
+						resumeKey = line.substring(ndx + 1);
+						continue;
+					}
+					try {
+						complete(line.substring(ndx + 1), OutputType.valueOf(line.substring(0, ndx)));
+					}
+					catch (IllegalArgumentException e) {
+						// partially written line from when we went down, ignore it
+						LOG.log(Level.WARNING, "Ignoring checkpoint line " + line + " in " + file);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+			LOG.info("Resuming from " + file + " with " + completed.size() + " completed");
+		}
+		closeWriter();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+		writer.write("# opened " + new Date() + "\n");
+		return completed.size();
+	}
+
+	public boolean isCompleted(String key) {
+		return key != null && completed.containsKey(key);
+	}
+
+	public int getCompletedCount() {
+		return completed.size();
+	}
+
+	// null unless a query paged by key got through some pages last time
+	public synchronized String getResumeKey() {
+		return resumeKey;
+	}
+
+	// an ERROR is a researcher we gave up on, it lets its page finish but does not count as completed
+	public synchronized void record(String key, OutputType outcome) {
+		if (key == null || writer == null) {
+			return;
+		}
+		complete(key, outcome);
+		for (OpenPage page : openPages) {
+			page.remaining.remove(key);
+		}
+		try {
+			writer.write(outcome.toString() + SEPARATOR + key + "\n");
+			advance();
+			if (++unflushed >= flushInterval) {
+				flush();
+			}
+		}
+		catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to write checkpoint " + file, e);
+		}
+	}
+
+	private void complete(String key, OutputType outcome) {
+		if (!OutputType.ERROR.equals(outcome)) {
+			completed.put(key, outcome);
+		}
+	}
+
+	// a page of the query, lastKey being where the next page starts and keys the researchers on it
+	public synchronized void pageRead(String lastKey, Collection<String> keys) {
+		if (lastKey == null || writer == null) {
+			return;
+		}
+		Set<String> remaining = new HashSet<String>();
+		for (String key : keys) {
+			if (key != null && !completed.containsKey(key)) {
+				remaining.add(key);
+			}
+		}
+		openPages.add(new OpenPage(lastKey, remaining));
+		try {
+			advance();
+		}
+		catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to write checkpoint " + file, e);
+		}
+	}
+
+	// pages finish out of order, we can only resume after the ones with nothing still open before them
+	private void advance() throws IOException {
+		String key = null;
+		while (!openPages.isEmpty() && openPages.getFirst().remaining.isEmpty()) {
+			key = openPages.removeFirst().lastKey;
+		}
+		if (key != null) {
+			resumeKey = key;
+			writer.write(RESUME_AFTER + SEPARATOR + key + "\n");
+		}
+	}
+
+	public synchronized void flush() {
+		if (writer != null) {
+			try {
+				writer.flush();
+				unflushed = 0;
+			}
+			catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to flush checkpoint " + file, e);
+			}
+		}
+	}
+
+	// the run finished, nothing to resume from
+	public synchronized void delete() {
+		closeWriter();
+		completed.clear();
+		openPages.clear();
+		resumeKey = null;
+		if (file.exists() && !file.delete()) {
+			LOG.warning("Unable to delete checkpoint " + file);
+		}
+	}
+
+	private void closeWriter() {
+		if (writer != null) {
+			try {
+				writer.close();
+			}
+			catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to close checkpoint " + file, e);
+			}
+			writer = null;
+			unflushed = 0;
+		}
+	}
+
+	public synchronized String toString() {
+		return file.getAbsolutePath() + " completed = " + completed.size() + (resumeKey != null ? ", resume after " + resumeKey : "");
+	}
+
+	private static final class OpenPage {
+		private final String lastKey;
+		private final Set<String> remaining;
+
+		private OpenPage(String lastKey, Set<String> remaining) {
+			this.lastKey = lastKey;
+			this.remaining = remaining;
+		}
+	}
+}
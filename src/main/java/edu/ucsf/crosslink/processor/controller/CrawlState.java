@@ -0,0 +1,258 @@
+package edu.ucsf.crosslink.processor.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.ucsf.crosslink.io.SparqlPersistance;
+import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
+
+/**
+ * When each researcher was last processed by one ProcessorController, so deciding whether a researcher can be
+ * skipped is a hash lookup instead of a query.
+ *
+ * Without a file this is loaded from the processing log in the store with a single query at the start of a run.
+ * With a file the log lives here instead, as append only binary records of researcher URI, time and outcome, and
+ * the researchers no longer carry it into the store.  The first load from a new file starts from whatever the
+ * store has.  If asked to, the researchers processed in a run are written back to the store as a processing log
+ * when the run finishes.
+ */
+public class CrawlState {
+
+	private static final Logger LOG = Logger.getLogger(CrawlState.class.getName());
+
+	private static final int FLUSH_INTERVAL = 100;
+
+	private final SparqlPersistance store;
+	private final String processorURI;
+	private final File file;
+	private final boolean export;
+	private final Map<String, Long> lastProcessed = new ConcurrentHashMap<String, Long>();
+	// what this run processed, for the export
+	private final Map<String, Long> processedThisRun = new ConcurrentHashMap<String, Long>();
+
+	private DataOutputStream out = null;
+	private int records = 0;
+	private int unflushed = 0;
+
+	public CrawlState(SparqlPersistance store, String processorURI, File file, boolean export) {
+		this.store = store;
+		this.processorURI = processorURI;
+		this.file = file;
+		this.export = export;
+	}
+
+	// true when the processing log is kept here rather than in the store
+	public boolean isLocal() {
+		return file != null;
+	}
+
+	// returns how many researchers we know about
+	public synchronized int load() throws Exception {
+		close();
+		lastProcessed.clear();
+		processedThisRun.clear();
+		records = 0;
+		if (file == null || !file.exists()) {
+			lastProcessed.putAll(store.loadLastProcessed(processorURI));
+		}
+		else {
+			read();
+		}
+		if (file != null) {
+			if (!file.exists() || records > 2 * lastProcessed.size() + FLUSH_INTERVAL) {
+				compact();
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		LOG.info("Loaded " + this);
+		return lastProcessed.size();
+	}
+
+	public synchronized void record(String researcherURI, OutputType outcome) {
+		if (researcherURI == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (isCurrent(outcome)) {
+			lastProcessed.put(researcherURI, now);
+			processedThisRun.put(researcherURI, now);
+		}
+		if (out != null) {
+			try {
+				write(out, researcherURI, now, outcome);
+				records++;
+				if (++unflushed >= FLUSH_INTERVAL) {
+					flush();
+				}
+			}
+			catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to write crawl state " + file, e);
+			}
+		}
+	}
+
+	// we know the store is up to date for the researcher
+	private static boolean isCurrent(OutputType outcome) {
+		return OutputType.PROCESSED.equals(outcome) || OutputType.UNCHANGED.equals(outcome);
+	}
+
+	public boolean processedSince(String researcherURI, long threshold) {
+		Long millis = researcherURI != null ? lastProcessed.get(researcherURI) : null;
+		return millis != null && millis > threshold;
+	}
+
+	// the run is over, write the processing log back to the store if we were asked to
+	public synchronized void finish() throws Exception {
+		flush();
+		if (isLocal() && export && !processedThisRun.isEmpty()) {
+			store.exportProcessingLog(processorURI, new HashMap<String, Long>(processedThisRun));
+			LOG.info("Exported " + processedThisRun.size() + " processing log entries for " + processorURI);
+		}
+		processedThisRun.clear();
+	}
+
+	public synchronized void flush() {
+		if (out != null) {
+			try {
+				out.flush();
+				unflushed = 0;
+			}
+			catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to flush crawl state " + file, e);
+			}
+		}
+	}
+
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to close crawl state " + file, e);
+			}
+			out = null;
+		}
+	}
+
+	private void read() throws IOException {
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+		DataInputStream in = new DataInputStream(counter);
+		// where the last whole record ends
+		long complete = 0;
+		try {
+			while (true) {
+				String researcherURI = in.readUTF();
+				long millis = in.readLong();
+				String outcome = in.readUTF();
+				complete = counter.count;
+				records++;
+				try {
+					if (isCurrent(OutputType.valueOf(outcome))) {
+						lastProcessed.put(researcherURI, millis);
+					}
+				}
+				catch (IllegalArgumentException e) {
+					// from some other version, ignore it
+				}
+			}
+		}
+		catch (EOFException e) {
+			// end of the file, or a record cut short when we went down
+		}
+		catch (UTFDataFormatException e) {
+			LOG.log(Level.WARNING, "Unreadable record in " + file + " at " + complete, e);
+		}
+		finally {
+			in.close();
+		}
+		if (complete < file.length()) {
+			// otherwise the next record gets appended to the partial one and both are lost on the next read
+			LOG.warning("Dropping " + (file.length() - complete) + " bytes of partial record from the end of " + file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(complete);
+			}
+			finally {
+				raf.close();
+			}
+		}
+	}
+
+	// rewrites the file with just the latest record for each researcher
+	private void compact() throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			for (Map.Entry<String, Long> entry : lastProcessed.entrySet()) {
+				write(compacted, entry.getKey(), entry.getValue(), OutputType.PROCESSED);
+			}
+		}
+		finally {
+			compacted.close();
+		}
+		if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+			throw new IOException("Unable to replace " + file + " with " + tmp);
+		}
+		records = lastProcessed.size();
+	}
+
+	private static void write(DataOutputStream out, String researcherURI, long millis, OutputType outcome) throws IOException {
+		out.writeUTF(researcherURI);
+		out.writeLong(millis);
+		out.writeUTF(outcome.toString());
+	}
+
+	public String toString() {
+		return "Crawl state for " + processorURI + (file != null ? " in " + file : "") + " knows " +
+				lastProcessed.size() + " researchers";
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
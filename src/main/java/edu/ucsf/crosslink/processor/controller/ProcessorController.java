@@ -1,19 +1,26 @@
 package edu.ucsf.crosslink.processor.controller;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -30,10 +37,13 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 import edu.ucsf.crosslink.io.SparqlPersistance;
+import edu.ucsf.crosslink.io.http.CircuitBreaker;
 import edu.ucsf.crosslink.model.R2RResourceObject;
+import edu.ucsf.crosslink.model.Researcher;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
 import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
 import edu.ucsf.crosslink.processor.iterator.MarengoDetailProcessor;
+import edu.ucsf.crosslink.processor.iterator.SparqlProcessor;
 import edu.ucsf.ctsi.r2r.R2RConstants;
 
 public final class ProcessorController extends R2RResourceObject implements Runnable, Comparable<ProcessorController>, R2RConstants {
@@ -41,6 +51,7 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 	private static final Logger LOG = Logger.getLogger(MarengoDetailProcessor.class.getName());
 	
 	private int MAX_QUEUE_SIZE = 100;
+	private static final long DRAIN_POLL_MILLIS = 500;
 
 	private Mode mode = Mode.ENABLED;
 	private Status status = Status.IDLE;
@@ -48,7 +59,8 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 	private int errorsToAbort = 5;
 	private int pauseOnAbort = 60;
 	private int staleDays = 7;
-	private AtomicInteger consecutiveErrorCnt = new AtomicInteger();
+	// trips us into ERROR when too many researchers in a row are failing, see setConfiguartion
+	private CircuitBreaker errorBreaker = null;
 
 	private Date started = null;
 	private Date ended = null;
@@ -66,11 +78,33 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 	private Thread crawlingThread = null;
 	private ExecutorService executorService = null;
 	private Future<Boolean> currentJob = null;
+	private ExecutorType executorType = ExecutorType.POOL;
 	private int threadCount = 0;
+	private int concurrencyLimit = 0;
+	private SharedCrawlPool sharedCrawlPool = null;
+	private int poolWeight = 1;
+	private CrawlCheckpoint checkpoint = null;
+	private ResearcherPipeline pipeline = null;
+	private int fetchThreadCount = 4;
+	private int transformThreadCount = 2;
+	private int persistThreadCount = 2;
+	private int stageQueueDepth = 100;
+	private int fetchesInFlight = 100;
+	private RetryScheduler retryScheduler = null;
+	// submitted researchers that have not been reported processed or failed yet
+	private final AtomicInteger outstanding = new AtomicInteger();
+	// retries wait here for the crawling thread to submit them, so that they never run on (or block) the retry
+	// scheduler's thread and processors without an executor stay single threaded
+	private final Queue<ResearcherProcessor> retries = new ConcurrentLinkedQueue<ResearcherProcessor>();
+	private CrawlState crawlState = null;
+	private File crawlStateDir = null;
+	private boolean crawlStateExport = false;
 	
 	@Inject
 	public ProcessorController(@Named("crawlerName") String name, Mode mode, SparqlPersistance store, 
-			Iterable<ResearcherProcessor> researcherIterable, @Named("threadCount") Integer threadCount) throws Exception {
+			Iterable<ResearcherProcessor> researcherIterable, @Named("threadCount") Integer threadCount,
+			ExecutorType executorType, @Named("concurrencyLimit") Integer concurrencyLimit,
+			SharedCrawlPool sharedCrawlPool, @Named("poolWeight") Integer poolWeight) throws Exception {
 		super(R2R_PROCESSOR + "/" + name, R2R_PROCESSOR);
 		this.setLabel(name);
 		this.mode = mode;	
@@ -78,10 +112,25 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		this.researcherIterable = researcherIterable;
 		executorQueue = new ArrayBlockingQueue<Runnable>(MAX_QUEUE_SIZE, true);
 		this.threadCount = threadCount;
+		this.executorType = executorType;
+		this.concurrencyLimit = concurrencyLimit;
+		this.sharedCrawlPool = sharedCrawlPool;
+		this.poolWeight = poolWeight;
+		this.errorBreaker = newErrorBreaker();
 		clear();
 	}
 	
 	private ExecutorService getNewExecutorService() {
+		if (ExecutorType.VIRTUAL.equals(executorType)) {
+			return new VirtualThreadExecutorService(concurrencyLimit);
+		}
+		else if (ExecutorType.SHARED.equals(executorType)) {
+			return sharedCrawlPool.lease(getName(), poolWeight);
+		}
+		else if (ExecutorType.PIPELINE.equals(executorType)) {
+			// the pipeline has its own executors, see getPipeline
+			return null;
+		}
 		return threadCount >= 0 ? new ThreadPoolExecutor(threadCount, threadCount,
                     5000L, TimeUnit.MILLISECONDS, executorQueue, new ThreadPoolExecutor.CallerRunsPolicy()) : null;
 	}
@@ -93,6 +142,74 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		this.errorsToAbort = errorsToAbort;
 		this.pauseOnAbort = pauseOnAbort;
 		this.staleDays = staleDays;
+		this.errorBreaker = newErrorBreaker();
+	}
+	
+	// a window of errorsToAbort + 1 that must all be failures, so it trips on more than errorsToAbort failures in a
+	// row just like before, and after pauseOnAbort the first result decides whether we keep going
+	private CircuitBreaker newErrorBreaker() {
+		return new CircuitBreaker(getName(), errorsToAbort + 1, 100, errorsToAbort + 1, pauseOnAbort * 60000L);
+	}
+
+	@Inject
+	public void setPipelineConfiguration(@Named("fetchThreadCount") Integer fetchThreadCount,
+			@Named("transformThreadCount") Integer transformThreadCount,
+			@Named("persistThreadCount") Integer persistThreadCount,
+			@Named("stageQueueDepth") Integer stageQueueDepth,
+			@Named("fetchesInFlight") Integer fetchesInFlight) {
+		this.fetchThreadCount = fetchThreadCount;
+		this.transformThreadCount = transformThreadCount;
+		this.persistThreadCount = persistThreadCount;
+		this.stageQueueDepth = stageQueueDepth;
+		this.fetchesInFlight = fetchesInFlight;
+	}
+
+	// retryAttempts of 0 turns retries off, delays are in milliseconds
+	@Inject
+	public void setRetryConfiguration(@Named("retryAttempts") Integer retryAttempts,
+			@Named("retryDelay") Integer retryDelay, @Named("retryMaxDelay") Integer retryMaxDelay) {
+		if (retryScheduler != null) {
+			retryScheduler.shutdown();
+		}
+		retryScheduler = retryAttempts > 0 ? new RetryScheduler(getName(), retryAttempts, retryDelay, retryMaxDelay, 
+				new RetryScheduler.Resubmitter() {
+			public void resubmit(ResearcherProcessor researcherProcessor) {
+				retries.add(researcherProcessor);
+			}
+
+			public void rejected(ResearcherProcessor researcherProcessor, Exception e) {
+				gaveUp(researcherProcessor, researcherProcessor, e);
+			}
+		}) : null;
+	}
+
+	// blank checkpointDir turns checkpoints off
+	@Inject(optional=true)
+	public void setCheckpointDir(@Named("checkpointDir") String checkpointDir, 
+			@Named("checkpointInterval") Integer checkpointInterval) {
+		if (checkpointDir != null && checkpointDir.trim().length() > 0) {
+			checkpoint = new CrawlCheckpoint(new File(checkpointDir.trim()), getName(), checkpointInterval);
+			if (researcherIterable instanceof SparqlProcessor) {
+				// so a restart can pick the query up after the pages we finished
+				((SparqlProcessor)researcherIterable).setPageListener(new SparqlProcessor.PageListener() {
+					public void pageRead(String lastKey, List<ResearcherProcessor> researchers) {
+						List<String> keys = new ArrayList<String>();
+						for (ResearcherProcessor rp : researchers) {
+							keys.add(rp.getResearcherURI());
+						}
+						checkpoint.pageRead(lastKey, keys);
+					}
+				});
+			}
+		}
+	}
+
+	// blank crawlStateDir keeps the processing log in the store, crawlStateExport copies it back there after each run
+	@Inject(optional=true)
+	public void setCrawlStateDir(@Named("crawlStateDir") String crawlStateDir, 
+			@Named("crawlStateExport") Boolean crawlStateExport) {
+		this.crawlStateDir = crawlStateDir != null && crawlStateDir.trim().length() > 0 ? new File(crawlStateDir.trim()) : null;
+		this.crawlStateExport = crawlStateExport;
 	}
 
 	public enum Status {
@@ -103,6 +220,13 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		ENABLED, DISABLED, FORCED, FORCED_NO_SKIP, DEBUG;
 	}
 	
+	// POOL is a fixed pool of threadCount threads, VIRTUAL is a thread per researcher bounded by concurrencyLimit,
+	// SHARED uses the node wide SharedCrawlPool with a share based on poolWeight, PIPELINE splits each researcher
+	// into fetch, transform and persist stages with their own thread counts
+	public enum ExecutorType {
+		POOL, VIRTUAL, SHARED, PIPELINE;
+	}
+	
 	public boolean isActive() {
 		return isActive(getStatus());
 	}
@@ -123,6 +247,35 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		return !Mode.FORCED_NO_SKIP.equals(getMode());
 	}
 	
+	public boolean processedWithin(String researcherURI, int daysConsideredOld) {
+		CrawlState state = crawlState;
+		return state != null && state.processedSince(researcherURI, new DateTime().minusDays(daysConsideredOld).getMillis());
+	}
+	
+	// the processing log only goes into the store when we are not keeping it locally
+	public void logCrawl(Researcher researcher) {
+		CrawlState state = crawlState;
+		if (state == null || !state.isLocal()) {
+			researcher.crawledBy(this);
+		}
+	}
+	
+	public List<String> deletePriorProcessLog(String researcherURI) {
+		CrawlState state = crawlState;
+		if (state != null && state.isLocal()) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(String.format(ResearcherProcessor.DELETE_PRIOR_PROCESS_LOG, researcherURI, getURI()));
+	}
+	
+	// for a researcher whose page has not changed, moves the processing log timestamp along and nothing else
+	public void touchProcessLog(String researcherURI) throws Exception {
+		CrawlState state = crawlState;
+		if (state == null || !state.isLocal()) {
+			store.exportProcessingLog(getURI(), Collections.singletonMap(researcherURI, System.currentTimeMillis()));
+		}
+	}
+	
 	public String getState() {
 		return getMode().toString() + " " + getStatus().toString();
 	}
@@ -200,10 +353,56 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		stats.get(type).push(message.toString(), time);
 	}
 
+	private void researcherProcessed(final ResearcherProcessor researcherProcessor, final OutputType action, long time) {
+		if (retryScheduler != null) {
+			retryScheduler.completed(researcherProcessor);
+		}
+		outstanding.decrementAndGet();
+		errorBreaker.recordSuccess();
+		addOutput(action, researcherProcessor, time);
+		// with write behind what it saved may still be in the buffer, and we must not pass over it on a restart
+		final CrawlState runState = crawlState;
+		store.whenStored(new SparqlPersistance.WriteListener() {
+			public void stored() {
+				if (runState != null) {
+					runState.record(researcherProcessor.getResearcherURI(), action);
+				}
+				if (checkpoint != null) {
+					checkpoint.record(researcherProcessor.getResearcherURI(), action);
+				}
+			}
+
+			public void rejected(Exception e) {
+				gaveUp(researcherProcessor, researcherProcessor + " was not stored", e);
+			}
+		});
+	}
+
+	// failures that get retried do not count against errorsToAbort
+	private void researcherFailed(ResearcherProcessor researcherProcessor, Exception e) {
+		if (retryScheduler != null && retryScheduler.retry(researcherProcessor)) {
+			addOutput(OutputType.RETRIED, researcherProcessor + " : " + e.getMessage());
+			LOG.log(Level.INFO, "Will retry " + researcherProcessor, e);
+		}
+		else {
+			gaveUp(researcherProcessor, researcherProcessor, e);
+		}
+		// after the retry is scheduled, so that awaitDrained never sees neither
+		outstanding.decrementAndGet();
+	}
+
+	// nothing more will happen to this researcher in this run, so its page of the query is done with it
+	private void gaveUp(ResearcherProcessor researcherProcessor, Object message, Exception e) {
+		addUnhandledException(message, e);
+		if (checkpoint != null) {
+			checkpoint.record(researcherProcessor.getResearcherURI(), OutputType.ERROR);
+		}
+	}
+
 	private void addUnhandledException(Object message, Exception e) {
 		addOutput(OutputType.ERROR, message);
-		consecutiveErrorCnt.incrementAndGet();
-		if (consecutiveErrorCnt.get() > errorsToAbort) {
+		errorBreaker.recordFailure();
+		if (errorBreaker.isOpen()) {
 			setStatus(Status.ERROR);
 		}
 		if (e != null) {
@@ -255,7 +454,33 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		for (OutputType type : OutputType.values()) {
 			stats.put(type, new TypedOutputStats(type, 100));
 		}
+		// release the old one, a shared pool lease would otherwise keep its share of the pool
+		if (executorService != null && !executorService.isShutdown()) {
+			executorService.shutdown();
+		}
 		executorService = getNewExecutorService();
+		if (retryScheduler != null) {
+			retryScheduler.clear();
+		}
+		retries.clear();
+		outstanding.set(0);
+	}
+	
+	// reuse the pipeline when resuming from a pause, otherwise start a new one
+	private ResearcherPipeline getPipeline() {
+		if (pipeline == null || pipeline.isShutdown()) {
+			pipeline = new ResearcherPipeline(getName(), fetchThreadCount, transformThreadCount, persistThreadCount, 
+					stageQueueDepth, fetchesInFlight, new ResearcherPipeline.Listener() {
+				public void completed(ResearcherProcessor researcherProcessor, OutputType action, long time) {
+					researcherProcessed(researcherProcessor, action, time);
+				}
+				
+				public void failed(ResearcherProcessor researcherProcessor, Exception e) {
+					researcherFailed(researcherProcessor, e);
+				}
+			});
+		}
+		return pipeline;
 	}
 	
 	// all this store stuff is ugly
@@ -296,7 +521,9 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		}
 		else if (!isOk()) {
 			int minutesBetween = Minutes.minutesBetween(new DateTime(ended), new DateTime()).getMinutes();
-			return new StartableStatus(minutesBetween > pauseOnAbort, "waited " + minutesBetween + " of " + pauseOnAbort + " minutes since " + getStatus());
+			// once we have waited long enough this lets the error breaker go half open so the next results are probes
+			return new StartableStatus(minutesBetween > pauseOnAbort && errorBreaker.tryAcquire(), 
+					"waited " + minutesBetween + " of " + pauseOnAbort + " minutes since " + getStatus() + ", " + errorBreaker.getState());
 		}
 		else if (isForced()) {
 			return new StartableStatus(true, "isForced");
@@ -347,27 +574,60 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 			started = store.startCrawl(this).getTime();
 			ended = null;
 			// restart old iterator if you can, otherwise grab a fresh one
-			currentIterator = currentIterator != null ? currentIterator : researcherIterable.iterator();
+			if (currentIterator == null) {
+				// a fresh iterator might be picking up after a restart, see how far we got last time
+				if (checkpoint != null && checkpoint.open() > 0) {
+					LOG.info(getName() + " resuming from " + checkpoint);
+					if (researcherIterable instanceof SparqlProcessor) {
+						((SparqlProcessor)researcherIterable).resumeAfter(checkpoint.getResumeKey());
+					}
+				}
+				// one load up front instead of a query per researcher, and we record to it even when not skipping
+				if (crawlState != null) {
+					crawlState.close();
+				}
+				crawlState = new CrawlState(store, getURI(), 
+						crawlStateDir != null ? new File(crawlStateDir, getName() + ".crawl") : null, crawlStateExport);
+				crawlState.load();
+				currentIterator = researcherIterable.iterator();
+			}
+			if (ExecutorType.PIPELINE.equals(executorType)) {
+				getPipeline();
+			}
 			while (isOk() && currentIterator.hasNext()) {
+				submitRetries();
 				ResearcherProcessor rp = currentIterator.next();
 				rp.setCrawler(this);
 				addOutput(OutputType.FOUND, rp);
-				QueuedRunnable qr = new QueuedRunnable(rp);
-				if (executorService != null) {
-					executorService.submit(qr);
-				}
-				else {
-					// run in line
-					qr.run();
+				if (checkpoint != null && checkpoint.isCompleted(rp.getResearcherURI())) {
+					// finished this one before we were restarted
+					addOutput(OutputType.SKIPPED, rp);
+					continue;
 				}
+				submit(rp);
 			}
 			if (isOk()) {
 				setStatus(Status.SHUTTING_DOWN);
+				// retries go through the executors, so let them finish before shutting those down
+				if (!awaitDrained(10, TimeUnit.MINUTES)) {
+					LOG.warning(getName() + " giving up on " + outstanding.get() + " in flight" + 
+							(retryScheduler != null ? ", " + retryScheduler : ""));
+					if (retryScheduler != null) {
+						retryScheduler.clear();
+					}
+				}
 				if (executorService != null) {
 					executorService.shutdown();
 					executorService.awaitTermination(10, TimeUnit.MINUTES);
 				}
+				if (pipeline != null && ExecutorType.PIPELINE.equals(executorType)) {
+					pipeline.shutdown(10, TimeUnit.MINUTES);
+				}
 				ended = store.finishCrawl(this).getTime();
+				crawlState.finish();
+				if (checkpoint != null) {
+					checkpoint.delete();
+				}
 				setStatus(Status.FINISHED);
 			}
 		}
@@ -375,6 +635,19 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 			addUnhandledException("Error while iterating over researchers", e);
 			setStatus(Status.ERROR);
 		}
+		if (checkpoint != null) {
+			// make sure whatever we have is on disk in case we are paused or in error
+			checkpoint.flush();
+		}
+		if (crawlState != null) {
+			crawlState.flush();
+		}
+		// a half open start that did not get to any researchers would otherwise keep us from ever starting again
+		errorBreaker.release();
+		if (executorService instanceof SharedCrawlPool.Lease) {
+			// paused or in error, let the other controllers have our share until we resume
+			((SharedCrawlPool.Lease)executorService).idle();
+		}
 		if (isForced()) {
 			// don't leave in forced mode
 			mode = Mode.ENABLED;
@@ -385,6 +658,57 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 		setCrawlingThread(null);
 	}
 	
+	private void submit(ResearcherProcessor researcherProcessor) {
+		outstanding.incrementAndGet();
+		try {
+			if (ExecutorType.PIPELINE.equals(executorType)) {
+				pipeline.submit(researcherProcessor);
+			}
+			else if (executorService != null) {
+				if (executorService.isShutdown()) {
+					// CallerRunsPolicy would quietly drop it
+					throw new RejectedExecutionException(getName() + " executor has been shut down");
+				}
+				executorService.submit(new QueuedRunnable(researcherProcessor));
+			}
+			else {
+				// run in line
+				new QueuedRunnable(researcherProcessor).run();
+			}
+		}
+		catch (RuntimeException e) {
+			outstanding.decrementAndGet();
+			throw e;
+		}
+	}
+	
+	private void submitRetries() {
+		ResearcherProcessor rp;
+		while (isOk() && (rp = retries.poll()) != null) {
+			try {
+				submit(rp);
+			}
+			catch (RuntimeException e) {
+				retryScheduler.completed(rp);
+				gaveUp(rp, rp, e);
+			}
+		}
+	}
+	
+	// a researcher still in the executors can fail and schedule a retry, and a retry goes back into the executors,
+	// so wait until there is nothing in flight and nothing waiting to be retried
+	private boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (isActive() && (outstanding.get() > 0 || (retryScheduler != null && retryScheduler.getPendingCount() > 0))) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			submitRetries();
+			Thread.sleep(DRAIN_POLL_MILLIS);
+		}
+		return true;
+	}
+	
 	public Iterable<ResearcherProcessor> getIterable() {
 		return researcherIterable;
 	}
@@ -394,13 +718,34 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 	}
 		
 	public String getCounts() {
-		String retval = "Queue = " + executorQueue.size();
+		String retval = getExecutorCounts();
+		if (retryScheduler != null) {
+			retval += ", " + retryScheduler.toString();
+		}
+		retval += ", Errors " + errorBreaker.getState();
 		for (TypedOutputStats output : getOutputStatsList()) {
 			retval += ", " + output.toString();
 		}
 		return retval;
 	}
 
+	private String getExecutorCounts() {
+		ExecutorService activeExecutorService = executorService;
+		ResearcherPipeline activePipeline = pipeline;
+		if (activePipeline != null && ExecutorType.PIPELINE.equals(executorType)) {
+			return activePipeline.getCounts();
+		}
+		else if (activeExecutorService instanceof VirtualThreadExecutorService) {
+			return "In flight = " + ((VirtualThreadExecutorService)activeExecutorService).getInFlightCount() + " of " + concurrencyLimit;
+		}
+		else if (activeExecutorService instanceof SharedCrawlPool.Lease) {
+			SharedCrawlPool.Lease lease = (SharedCrawlPool.Lease)activeExecutorService;
+			return "In flight = " + lease.getInFlightCount() + " of " + lease.getShare() + " shared (weight " + lease.getWeight() + 
+					" of " + sharedCrawlPool.getThreadBudget() + " threads)";
+		}
+		return "Queue = " + executorQueue.size();
+	}
+
 	public String getDates() {
 		String retval = "";
 		if (getDateLastCrawled() != null) {
@@ -442,11 +787,10 @@ public final class ProcessorController extends R2RResourceObject implements Runn
 				sw.start();
 				OutputType action = researcherProcessor.processResearcher();
 				sw.stop();
-				consecutiveErrorCnt.set(0);
-				addOutput(action, researcherProcessor, sw.getTime());					
+				researcherProcessed(researcherProcessor, action, sw.getTime());
 			}
 			catch (Exception e) {
-				addUnhandledException(researcherProcessor, e);
+				researcherFailed(researcherProcessor, e);
 			}
 		}
 	}
@@ -0,0 +1,196 @@
+package edu.ucsf.crosslink.processor.controller;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import edu.ucsf.crosslink.processor.ResearcherProcessor;
+import edu.ucsf.crosslink.processor.StagedResearcherProcessor;
+import edu.ucsf.crosslink.processor.StagedResearcherProcessor.Stage;
+import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
+
+/**
+ * Runs researchers through fetch, transform and persist stages, each with its own thread pool and a bounded
+ * queue in front of it.  A full queue blocks the stage feeding it, so a slow store slows down fetching instead
+ * of piling up downloaded pages in memory.  Processors that are not staged run entirely in the fetch stage.
+ *
+ * A processor that can start its fetch without waiting on it gives the fetch thread back right away, and comes
+ * back through its own unbounded queue once the response is in.  fetchesInFlight is what bounds that queue.
+ */
+public class ResearcherPipeline {
+
+	private static final Logger LOG = Logger.getLogger(ResearcherPipeline.class.getName());
+
+	public interface Listener {
+		void completed(ResearcherProcessor researcherProcessor, OutputType action, long time);
+		void failed(ResearcherProcessor researcherProcessor, Exception e);
+	}
+
+	private final String name;
+	private final Listener listener;
+	private final Map<Stage, ThreadPoolExecutor> executors = new EnumMap<Stage, ThreadPoolExecutor>(Stage.class);
+	// where started fetches come back to, this can not block since it is fed from the HTTP client's request threads
+	private final ThreadPoolExecutor fetched;
+	private final int fetchesInFlight;
+	private final Semaphore inFlight;
+
+	public ResearcherPipeline(String name, int fetchThreads, int transformThreads, int persistThreads, int queueDepth, 
+			int fetchesInFlight, Listener listener) {
+		this.name = name;
+		this.listener = listener;
+		this.fetchesInFlight = Math.max(1, fetchesInFlight);
+		this.inFlight = new Semaphore(this.fetchesInFlight);
+		executors.put(Stage.FETCH, newStageExecutor(fetchThreads, queueDepth));
+		executors.put(Stage.TRANSFORM, newStageExecutor(transformThreads, queueDepth));
+		executors.put(Stage.PERSIST, newStageExecutor(persistThreads, queueDepth));
+		fetched = new ThreadPoolExecutor(fetchThreads, fetchThreads, 5000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	private static ThreadPoolExecutor newStageExecutor(int threads, int queueDepth) {
+		return new ThreadPoolExecutor(threads, threads, 5000L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueDepth, true), new BlockingPolicy());
+	}
+
+	public void submit(ResearcherProcessor researcherProcessor) {
+		executors.get(Stage.FETCH).execute(new StageTask(researcherProcessor, Stage.FETCH, System.currentTimeMillis()));
+	}
+
+	// earlier stages feed later ones, so shut them down in order
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		boolean terminated = true;
+		for (Stage stage : Stage.values()) {
+			executors.get(stage).shutdown();
+			terminated &= executors.get(stage).awaitTermination(timeout, unit);
+			if (Stage.FETCH.equals(stage)) {
+				// fetches that are still out come back through fetched, so let them land first
+				if (inFlight.tryAcquire(fetchesInFlight, timeout, unit)) {
+					inFlight.release(fetchesInFlight);
+				}
+				else {
+					terminated = false;
+				}
+				fetched.shutdown();
+				terminated &= fetched.awaitTermination(timeout, unit);
+			}
+		}
+		return terminated;
+	}
+
+	public boolean isShutdown() {
+		return executors.get(Stage.FETCH).isShutdown();
+	}
+
+	public String getCounts() {
+		String retval = "";
+		for (Stage stage : Stage.values()) {
+			ThreadPoolExecutor executor = executors.get(stage);
+			retval += (retval.isEmpty() ? "" : ", ") + stage + " active = " + executor.getActiveCount() +
+					" queue = " + executor.getQueue().size();
+			if (Stage.FETCH.equals(stage)) {
+				retval += " in flight = " + (fetchesInFlight - inFlight.availablePermits());
+			}
+		}
+		return retval;
+	}
+
+	public String toString() {
+		return name + " pipeline " + getCounts();
+	}
+
+	// true when the processor went off to fetch on its own, in which case it comes back through fetched
+	private boolean startFetch(final StagedResearcherProcessor researcherProcessor, final long started) throws Exception {
+		inFlight.acquire();
+		boolean async = false;
+		try {
+			async = researcherProcessor.startFetch(new Runnable() {
+				public void run() {
+					fetched.execute(new StageTask(researcherProcessor, Stage.FETCH, started, true));
+				}
+			});
+		}
+		finally {
+			if (!async) {
+				inFlight.release();
+			}
+		}
+		return async;
+	}
+
+	private final class StageTask implements Runnable {
+		private final ResearcherProcessor researcherProcessor;
+		private final Stage stage;
+		private final long started;
+		// the fetch has already been started and is back
+		private final boolean resumed;
+
+		private StageTask(ResearcherProcessor researcherProcessor, Stage stage, long started) {
+			this(researcherProcessor, stage, started, false);
+		}
+
+		private StageTask(ResearcherProcessor researcherProcessor, Stage stage, long started, boolean resumed) {
+			this.researcherProcessor = researcherProcessor;
+			this.stage = stage;
+			this.started = started;
+			this.resumed = resumed;
+		}
+
+		public void run() {
+			if (resumed) {
+				inFlight.release();
+			}
+			try {
+				OutputType action = null;
+				if (researcherProcessor instanceof StagedResearcherProcessor) {
+					if (Stage.FETCH.equals(stage) && !resumed && startFetch((StagedResearcherProcessor)researcherProcessor, started)) {
+						return;
+					}
+					action = ((StagedResearcherProcessor)researcherProcessor).runStage(stage);
+					if (action == null) {
+						Stage next = Stage.values()[stage.ordinal() + 1];
+						executors.get(next).execute(new StageTask(researcherProcessor, next, started));
+						return;
+					}
+					((StagedResearcherProcessor)researcherProcessor).release();
+				}
+				else {
+					action = researcherProcessor.processResearcher();
+				}
+				listener.completed(researcherProcessor, action, System.currentTimeMillis() - started);
+			}
+			catch (Exception e) {
+				if (researcherProcessor instanceof StagedResearcherProcessor) {
+					((StagedResearcherProcessor)researcherProcessor).release();
+				}
+				listener.failed(researcherProcessor, e);
+			}
+		}
+	}
+
+	// wait for room in the next stage rather than running the task in the wrong pool
+	private static final class BlockingPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Pipeline stage has been shut down");
+			}
+			try {
+				executor.getQueue().put(r);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOG.info("Interrupted while waiting for room in the pipeline");
+				throw new RejectedExecutionException(e);
+			}
+			// shut down while we waited, so the workers may already be gone and nothing would ever take it
+			if (executor.isShutdown() && executor.getQueue().remove(r)) {
+				throw new RejectedExecutionException("Pipeline stage has been shut down");
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package edu.ucsf.crosslink.processor.controller;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.ucsf.crosslink.processor.ResearcherProcessor;
+
+/**
+ * Gives researchers that failed another chance later in the same crawl instead of waiting for the next one.
+ * Each retry is delayed by an exponentially growing, jittered amount (so a site that just hiccuped does not get
+ * all its failures back at the same moment) and a researcher is given up on after maxAttempts retries.
+ * The retry is handed back to the controller, which submits it from its crawling thread alongside whatever the
+ * main iterator is turning up, so the resubmit must not block or run the researcher itself.
+ */
+public class RetryScheduler {
+
+	private static final Logger LOG = Logger.getLogger(RetryScheduler.class.getName());
+
+	public interface Resubmitter {
+		void resubmit(ResearcherProcessor researcherProcessor);
+		// the retry could not be handed back, so the researcher is done as far as we are concerned
+		void rejected(ResearcherProcessor researcherProcessor, Exception e);
+	}
+
+	private final String name;
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Resubmitter resubmitter;
+	private final ScheduledThreadPoolExecutor scheduler;
+	// researchers that have a retry scheduled or running, with how many times they have been retried
+	private final Map<ResearcherProcessor, Integer> attempts = new ConcurrentHashMap<ResearcherProcessor, Integer>();
+
+	public RetryScheduler(String name, int maxAttempts, long baseDelay, long maxDelay, Resubmitter resubmitter) {
+		this.name = name;
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		this.resubmitter = resubmitter;
+		this.scheduler = new ScheduledThreadPoolExecutor(1);
+		// don't hold on to a thread for controllers that are not retrying anything
+		scheduler.setKeepAliveTime(1, TimeUnit.MINUTES);
+		scheduler.allowCoreThreadTimeOut(true);
+	}
+
+	// returns false when the researcher has used up its retries
+	public boolean retry(final ResearcherProcessor researcherProcessor) {
+		Integer previous = attempts.get(researcherProcessor);
+		int attempt = previous != null ? previous + 1 : 1;
+		if (attempt > maxAttempts) {
+			completed(researcherProcessor);
+			return false;
+		}
+		attempts.put(researcherProcessor, attempt);
+		long delay = getDelay(attempt);
+		LOG.info(name + " retrying " + researcherProcessor + " in " + delay + "ms, attempt " + attempt + " of " + maxAttempts);
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				try {
+					resubmitter.resubmit(researcherProcessor);
+				}
+				catch (Exception e) {
+					LOG.log(Level.WARNING, name + " unable to resubmit " + researcherProcessor, e);
+					completed(researcherProcessor);
+					resubmitter.rejected(researcherProcessor, e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	// half of the backoff is fixed, the other half random
+	private long getDelay(int attempt) {
+		long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	public void completed(ResearcherProcessor researcherProcessor) {
+		attempts.remove(researcherProcessor);
+	}
+
+	public int getPendingCount() {
+		return attempts.size();
+	}
+
+	// drop anything that is still waiting
+	public void clear() {
+		scheduler.getQueue().clear();
+		attempts.clear();
+	}
+
+	public void shutdown() {
+		clear();
+		scheduler.shutdownNow();
+	}
+
+	public String toString() {
+		return "Retry pending = " + getPendingCount();
+	}
+}
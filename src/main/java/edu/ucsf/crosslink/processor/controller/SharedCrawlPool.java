@@ -0,0 +1,229 @@
+package edu.ucsf.crosslink.processor.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * One work stealing pool shared by every ProcessorController that runs with ExecutorType.SHARED.
+ * The pool size is the global thread budget for the node.  Each controller gets a Lease whose share of the budget
+ * is proportional to its weight relative to the other controllers that are currently running, so idle controllers
+ * do not hoard threads and busy ones can not starve each other.
+ */
+@Singleton
+public class SharedCrawlPool {
+
+	private static final Logger LOG = Logger.getLogger(SharedCrawlPool.class.getName());
+
+	private final ForkJoinPool pool;
+	private final int threadBudget;
+	private final List<Lease> activeLeases = new ArrayList<Lease>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	@Inject
+	public SharedCrawlPool(@Named("crawlPoolThreadCount") Integer threadBudget) {
+		this.threadBudget = threadBudget;
+		// async mode gives FIFO ordering, which is what we want for independent researcher tasks
+		this.pool = new ForkJoinPool(threadBudget, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		LOG.info("Shared crawl pool started with " + threadBudget + " threads");
+	}
+
+	// the lease only counts against the pool once it starts submitting work
+	public Lease lease(String name, int weight) {
+		return new Lease(name, Math.max(1, weight));
+	}
+
+	public int getThreadBudget() {
+		return threadBudget;
+	}
+
+	public int getActiveThreadCount() {
+		return pool.getActiveThreadCount();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// must hold the lock
+	private int shareFor(Lease lease) {
+		int totalWeight = 0;
+		for (Lease active : activeLeases) {
+			totalWeight += active.weight;
+		}
+		return Math.max(1, (threadBudget * lease.weight) / Math.max(1, totalWeight));
+	}
+
+	public final class Lease extends AbstractExecutorService {
+
+		private final String name;
+		private final int weight;
+		private int inFlight = 0;
+		private boolean shutdown = false;
+
+		private Lease(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+
+		public void execute(final Runnable command) {
+			lock.lock();
+			try {
+				if (!shutdown && !activeLeases.contains(this)) {
+					activeLeases.add(this);
+					changed.signalAll();
+				}
+				while (!shutdown && inFlight >= shareFor(this)) {
+					changed.await();
+				}
+				if (shutdown) {
+					throw new RejectedExecutionException(name + " has been shut down");
+				}
+				inFlight++;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+			finally {
+				lock.unlock();
+			}
+			try {
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							command.run();
+						}
+						finally {
+							finished();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				finished();
+				throw e;
+			}
+		}
+
+		private void finished() {
+			lock.lock();
+			try {
+				inFlight--;
+				changed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public int getInFlightCount() {
+			lock.lock();
+			try {
+				return inFlight;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public int getShare() {
+			lock.lock();
+			try {
+				return activeLeases.contains(this) ? shareFor(this) : 0;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		// stop counting against the pool until we execute something again, for a controller that paused or stopped 
+		// on errors.  Running tasks are allowed to finish.
+		public void idle() {
+			lock.lock();
+			try {
+				if (activeLeases.remove(this)) {
+					changed.signalAll();
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		// give our share back to the other controllers right away, running tasks are allowed to finish
+		public void shutdown() {
+			lock.lock();
+			try {
+				shutdown = true;
+				activeLeases.remove(this);
+				changed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		// tasks already handed to the pool are shared with other leases, so we can not take them back
+		public List<Runnable> shutdownNow() {
+			shutdown();
+			return new ArrayList<Runnable>();
+		}
+
+		public boolean isShutdown() {
+			lock.lock();
+			try {
+				return shutdown;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public boolean isTerminated() {
+			lock.lock();
+			try {
+				return shutdown && inFlight == 0;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long nanos = unit.toNanos(timeout);
+			lock.lock();
+			try {
+				while (!(shutdown && inFlight == 0)) {
+					if (nanos <= 0) {
+						return false;
+					}
+					nanos = changed.awaitNanos(nanos);
+				}
+				return true;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public String toString() {
+			return name + " weight " + weight;
+		}
+	}
+}
@@ -10,7 +10,8 @@ import org.joda.time.format.PeriodFormat;
 
 public final class TypedOutputStats  {
 
-	public enum OutputType { FOUND, AVOIDED, SKIPPED, PROCESSED, ERROR, DELETED};
+	// UNCHANGED is a researcher we went out and checked, but whose page had not changed since we last processed it
+	public enum OutputType { FOUND, AVOIDED, SKIPPED, PROCESSED, UNCHANGED, ERROR, RETRIED, DELETED};
 
 	private OutputType type;
 	private int limit = 100;
@@ -0,0 +1,100 @@
+package edu.ucsf.crosslink.processor.controller;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs every task on its own thread and bounds how many run at once with a semaphore instead of a thread count.
+ * When the pool is full, execute() blocks the submitting thread until a slot frees up rather than running the
+ * task in line like CallerRunsPolicy does.  Uses virtual threads when the JVM has them (Java 21+), plain
+ * cached threads otherwise.
+ */
+public class VirtualThreadExecutorService extends AbstractExecutorService {
+
+	private static final Logger LOG = Logger.getLogger(VirtualThreadExecutorService.class.getName());
+
+	private final ExecutorService perTaskExecutor;
+	private final Semaphore permits;
+	private final int concurrencyLimit;
+
+	public VirtualThreadExecutorService(int concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+		this.permits = new Semaphore(concurrencyLimit, true);
+		this.perTaskExecutor = newPerTaskExecutor();
+	}
+
+	private static ExecutorService newPerTaskExecutor() {
+		try {
+			// look this up by name so that we still build and run on JVM's without virtual threads
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e) {
+			LOG.info("Virtual threads are not available in this JVM, falling back to a cached thread pool");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public void execute(final Runnable command) {
+		if (isShutdown()) {
+			throw new RejectedExecutionException("Executor has been shut down");
+		}
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+		try {
+			perTaskExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						command.run();
+					}
+					finally {
+						permits.release();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	public int getInFlightCount() {
+		return concurrencyLimit - permits.availablePermits();
+	}
+
+	public int getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	public void shutdown() {
+		perTaskExecutor.shutdown();
+	}
+
+	public List<Runnable> shutdownNow() {
+		return perTaskExecutor.shutdownNow();
+	}
+
+	public boolean isShutdown() {
+		return perTaskExecutor.isShutdown();
+	}
+
+	public boolean isTerminated() {
+		return perTaskExecutor.isTerminated();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return perTaskExecutor.awaitTermination(timeout, unit);
+	}
+
+}
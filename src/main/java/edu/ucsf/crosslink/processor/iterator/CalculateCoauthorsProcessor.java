@@ -43,15 +43,20 @@ public class CalculateCoauthorsProcessor extends SparqlProcessor implements R2RC
 	private SparqlPersistance store = null;
 	
 	@Inject
-	public CalculateCoauthorsProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlPersistance store) throws Exception {
-		super(new SparqlQueryClient(sparqlQuery + "/query"), LIMIT);
+	public CalculateCoauthorsProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient, SparqlPersistance store) throws Exception {
+		super(sparqlQueryClient, sparqlQuery + "/query", LIMIT);
 		this.store = store;
 	}
 	
+	// one row per affiliation of the researcher
+	@Override
+	protected boolean isKeyUnique() {
+		return false;
+	}
+	
 	@Override
 	protected String getSparqlQuery(int offset, int limit) throws Exception {
-		return RESEARCHERS_SELECT_NO_SKIP + 
-				(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");	
+		return page(RESEARCHERS_SELECT_NO_SKIP, offset, limit);	
 	}
 	
 	@Override
@@ -96,10 +101,16 @@ public class CalculateCoauthorsProcessor extends SparqlProcessor implements R2RC
 
 			// new
 			store.startTransaction();
-			store.execute(preStatements);
-			store.execute(String.format(DELETE_PRIOR_PROCESS_LOG, getResearcherURI(), getCrawler().getURI()));
-			store.update(researcher);
-			store.endTransaction();
+			try {
+				store.execute(preStatements);
+				store.execute(getCrawler().deletePriorProcessLog(getResearcherURI()));
+				store.update(researcher);
+				store.endTransaction();
+			}
+			finally {
+				// only matters when something failed before endTransaction
+				store.abortTransaction();
+			}
 			// new
 			
 			
@@ -1,7 +1,7 @@
 package edu.ucsf.crosslink.processor.iterator;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -14,6 +14,7 @@ import org.apache.jena.rdf.model.Model;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import edu.ucsf.crosslink.io.ModelUploader;
 import edu.ucsf.crosslink.model.Researcher;
 import edu.ucsf.crosslink.processor.BasicResearcherProcessor;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
@@ -48,7 +49,8 @@ public class CopyProcessor extends SparqlProcessor implements R2RConstants {
 	
 	private SparqlPostClient uiSparqlPostClient = null;
 	private SparqlQueryClient uiSparqlQueryClient = null;
-	private List<String> skipList = new ArrayList<String>();
+	private ModelUploader uploader = null;
+	private List<String> skipList = Collections.synchronizedList(new ArrayList<String>());
 	private ProcessorController processorController = null;
 	
 	private Model buffer = null;
@@ -57,9 +59,11 @@ public class CopyProcessor extends SparqlProcessor implements R2RConstants {
 	
 	// Will copy all researchers into the UI fuseki instance.  
 	@Inject
-	public CopyProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, @Named("uiFusekiUrl") String uiFusekiUrl) throws Exception {
-		super(new SparqlQueryClient(sparqlQuery + "/query"), LIMIT);
+	public CopyProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient, @Named("uiFusekiUrl") String uiFusekiUrl,
+			ModelUploader.Format uploadFormat) throws Exception {
+		super(sparqlQueryClient, sparqlQuery + "/query", LIMIT);
 		uiSparqlPostClient = new SparqlPostClient(uiFusekiUrl + "/update", uiFusekiUrl +  "/data?default");
+		uploader = new ModelUploader(uiFusekiUrl +  "/data?default", uploadFormat);
 		uiSparqlQueryClient = new SparqlQueryClient(uiFusekiUrl + "/query");
 		addToUIStore(R2ROntology.createR2ROntModel());
 		addToUIStore(getSparqlClient().construct(AFFILIATIONS));
@@ -96,11 +100,7 @@ public class CopyProcessor extends SparqlProcessor implements R2RConstants {
 	}
 	
 	private void flushBuffer() throws Exception {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		buffer.write(stream);
-		stream.flush();
-		stream.close();
-		uiSparqlPostClient.add(stream.toByteArray());
+		uploader.add(buffer);
 		buffer = null;		
 	}
 
@@ -121,9 +121,14 @@ public class CopyProcessor extends SparqlProcessor implements R2RConstants {
 		return query;
 	}
 	
+	// the researcher comes back once per affiliation
+	@Override
+	protected boolean isKeyUnique() {
+		return false;
+	}
+	
 	protected String getFormattedQueryString(int offset, int limit) {
-		return RESEARCHERS + 
-				(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");	}
+		return page(RESEARCHERS, offset, limit);	}
 	
 	@Override
 	protected ResearcherProcessor getResearcherProcessor(QuerySolution qs) {
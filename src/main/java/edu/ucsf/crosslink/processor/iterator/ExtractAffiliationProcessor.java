@@ -3,10 +3,12 @@ package edu.ucsf.crosslink.processor.iterator;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import edu.ucsf.crosslink.io.ModelUploader;
 import edu.ucsf.crosslink.model.Affiliated;
 import edu.ucsf.crosslink.model.Affiliation;
 import edu.ucsf.crosslink.model.Researcher;
 import edu.ucsf.crosslink.web.FusekiRestMethods;
+import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 
 public class ExtractAffiliationProcessor extends ExtractProcessor implements Affiliated {
 
@@ -30,8 +32,9 @@ public class ExtractAffiliationProcessor extends ExtractProcessor implements Aff
 
 	@Inject
 	public ExtractAffiliationProcessor(Affiliation affiliation,
-			@Named("r2r.fusekiUrl") String sparqlQuery, @Named("uiFusekiUrl") String uiFusekiUrl) throws Exception {
-		super(sparqlQuery, uiFusekiUrl);
+			@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient, @Named("uiFusekiUrl") String uiFusekiUrl, 
+			ModelUploader.Format uploadFormat) throws Exception {
+		super(sparqlQuery, sparqlQueryClient, uiFusekiUrl, uploadFormat);
 		this.affiliation = affiliation;
 	}
 	
@@ -41,7 +44,7 @@ public class ExtractAffiliationProcessor extends ExtractProcessor implements Aff
 
 	@Override
 	protected String getFormattedQueryString(int offset, int limit) {
-		return String.format(RESEARCHERS_SELECT_NO_SKIP, getAffiliation().getURI());
+		return partition(String.format(RESEARCHERS_SELECT_NO_SKIP, getAffiliation().getURI()));
 	}
 	
 	@Override
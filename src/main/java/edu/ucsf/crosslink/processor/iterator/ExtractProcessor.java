@@ -1,7 +1,7 @@
 package edu.ucsf.crosslink.processor.iterator;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -14,6 +14,7 @@ import org.apache.jena.rdf.model.Model;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import edu.ucsf.crosslink.io.ModelUploader;
 import edu.ucsf.crosslink.model.Researcher;
 import edu.ucsf.crosslink.processor.BasicResearcherProcessor;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
@@ -53,7 +54,8 @@ public class ExtractProcessor extends SparqlProcessor implements R2RConstants {
 
 	private SparqlPostClient uiSparqlPostClient = null;
 	private SparqlQueryClient uiSparqlQueryClient = null;
-	private List<String> skipList = new ArrayList<String>();
+	private ModelUploader uploader = null;
+	private List<String> skipList = Collections.synchronizedList(new ArrayList<String>());
 	private ProcessorController processorController = null;
 	
 	private Model buffer = null;
@@ -62,9 +64,11 @@ public class ExtractProcessor extends SparqlProcessor implements R2RConstants {
 	
 	// Will copy all researchers into the UI fuseki instance.  
 	@Inject
-	public ExtractProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, @Named("uiFusekiUrl") String uiFusekiUrl) throws Exception {
-		super(new SparqlQueryClient(sparqlQuery + "/query"), LIMIT);
+	public ExtractProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient, @Named("uiFusekiUrl") String uiFusekiUrl,
+			ModelUploader.Format uploadFormat) throws Exception {
+		super(sparqlQueryClient, sparqlQuery + "/query", LIMIT);
 		uiSparqlPostClient = new SparqlPostClient(uiFusekiUrl + "/update", uiFusekiUrl +  "/data?default");
+		uploader = new ModelUploader(uiFusekiUrl +  "/data?default", uploadFormat);
 		uiSparqlQueryClient = new SparqlQueryClient(uiFusekiUrl + "/query");
 		addToStore(R2ROntology.createR2ROntModel());
 		addToStore(getSparqlClient().construct(AFFILIATIONS));
@@ -101,11 +105,7 @@ public class ExtractProcessor extends SparqlProcessor implements R2RConstants {
 	}
 	
 	private void flushBuffer() throws Exception {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		buffer.write(stream);
-		stream.flush();
-		stream.close();
-		uiSparqlPostClient.add(stream.toByteArray());
+		uploader.add(buffer);
 		buffer = null;		
 	}
 
@@ -127,8 +127,7 @@ public class ExtractProcessor extends SparqlProcessor implements R2RConstants {
 	}
 	
 	protected String getFormattedQueryString(int offset, int limit) {
-		return RESEARCHERS_WITH_EXTERNAL_COAUTHORS_CNT + 
-				(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");	}
+		return page(RESEARCHERS_WITH_EXTERNAL_COAUTHORS_CNT, offset, limit);	}
 	
 	@Override
 	protected ResearcherProcessor getResearcherProcessor(QuerySolution qs) {
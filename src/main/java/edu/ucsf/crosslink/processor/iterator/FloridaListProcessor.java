@@ -12,7 +12,6 @@ import edu.ucsf.crosslink.processor.BasicResearcherProcessor;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
 import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
 import edu.ucsf.ctsi.r2r.R2RConstants;
-import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 
 public class FloridaListProcessor extends SparqlProcessor implements R2RConstants {
 
@@ -29,14 +28,13 @@ public class FloridaListProcessor extends SparqlProcessor implements R2RConstant
 	// remove harvester as required item
 	@Inject
 	public FloridaListProcessor(SparqlPersistance store) throws Exception {
-		super(new SparqlQueryClient("http://sparql.vivo.ufl.edu/VIVO/query"), LIMIT);
+		super("http://sparql.vivo.ufl.edu/VIVO/query", LIMIT);
 		this.store = store;
 	}
 
 	@Override
 	protected String getSparqlQuery(int offset, int limit) {
-		return RESEARCHERS_SELECT + 
-				(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");
+		return page(RESEARCHERS_SELECT, offset, limit);
 	}
 
 	@Override
@@ -2,16 +2,12 @@ package edu.ucsf.crosslink.processor.iterator;
 
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.jena.datatypes.xsd.XSDDateTime;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
-import org.joda.time.DateTime;
 import org.jsoup.Jsoup;
 import org.jsoup.safety.Whitelist;
 
@@ -22,12 +18,11 @@ import com.hp.cache4guice.Cached;
 import edu.ucsf.crosslink.io.SparqlPersistance;
 import edu.ucsf.crosslink.io.http.DOI2PMIDConverter;
 import edu.ucsf.crosslink.model.Researcher;
-import edu.ucsf.crosslink.processor.BasicResearcherProcessor;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
+import edu.ucsf.crosslink.processor.StagedResearcherProcessor;
 import edu.ucsf.crosslink.processor.controller.ProcessorController;
 import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
 import edu.ucsf.ctsi.r2r.R2RConstants;
-import edu.ucsf.ctsi.r2r.R2ROntology;
 import edu.ucsf.ctsi.r2r.jena.ResultSetConsumer;
 import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 
@@ -37,12 +32,7 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 	
 	public static final String DOI_PREFIX = "http://dx.doi.org/";
 
-	private static final String RESEARCHERS_SELECT_SKIP = "SELECT ?r ?ts WHERE { " +
-			"?r <" + RDF_TYPE + "> <" + FOAF_PERSON + "> . OPTIONAL {?r <" + R2R_PROCESSED + "> ?c . ?c <" + R2R_PROCESSED_BY + 
-			"> <%1$s> . ?c <" + R2R_PROCESSED_ON + 
-			"> ?ts} FILTER (!bound(?ts) || ?ts < \"%2$s\"^^<http://www.w3.org/2001/XMLSchema#dateTime>)} ORDER BY (?ts)";	
-
-	private static final String RESEARCHERS_SELECT_NO_SKIP = "SELECT ?r ?ts WHERE { " +
+	private static final String RESEARCHERS_SELECT_NO_SKIP = "SELECT ?r WHERE { " +
 			"?r <" + RDF_TYPE + "> <" + FOAF_PERSON + ">}";	
 	
 	private static final String RESEARCHER_DETAIL = "SELECT ?l ?fn ?ln ?orcid WHERE { " +
@@ -58,12 +48,11 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 	private static final String LIR_DETAIL = "SELECT ?pmid ?doi WHERE { OPTIONAL {" +
 			"<%1$s> <" + BIBO_PMID + "> ?pmid} . OPTIONAL {<%1$s> <" + BIBO_DOI + "> ?doi}}";
 
-	private static final String REMOVE_EXISTING_PUBLICATIONS = "DELETE {<%1$s> <" + FOAF_PUBLICATIONS + 
-			"> ?i } WHERE " + "{  <%1$s> <" + FOAF_PUBLICATIONS + "> ?i }";	
-	
 	private static final int LIMIT = 0;
 
 	private static final String MARENGO_PREFIX = "http://marengo.info-science.uiowa.edu:2020/resource/";
+
+	private static final String MARENGO_SPARQL = "http://marengo.info-science.uiowa.edu:2020/sparql";
 	
 	private Integer daysConsideredOld;
 
@@ -76,10 +65,10 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 	
 	// remove harvester as required item
 	@Inject
-	public MarengoDetailProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlPersistance store, DOI2PMIDConverter converter,
+	public MarengoDetailProcessor(@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient, SparqlPersistance store, DOI2PMIDConverter converter,
 			@Named("daysConsideredOld") Integer daysConsideredOld, @Named("avoids") String avoids) throws Exception {
-		super(new SparqlQueryClient(sparqlQuery + "/query"), LIMIT);
-		this.marengoSparqlClient = new SparqlQueryClient("http://marengo.info-science.uiowa.edu:2020/sparql", 600000, 600000);
+		super(sparqlQueryClient, sparqlQuery + "/query", LIMIT);
+		this.marengoSparqlClient = new SparqlQueryClient(MARENGO_SPARQL, 600000, 600000);
 		this.daysConsideredOld = daysConsideredOld;
 		this.store = store;
 		this.converter = converter;
@@ -93,16 +82,7 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 	
 	@Override
 	protected String getSparqlQuery(int offset, int limit) {
-		if (processorController != null && processorController.allowSkip()) {
-			Calendar threshold = Calendar.getInstance();
-			threshold.setTimeInMillis(new DateTime().minusDays(daysConsideredOld).getMillis());
-			return String.format(RESEARCHERS_SELECT_SKIP, processorController.getURI(), 
-					R2ROntology.createDefaultModel().createTypedLiteral(threshold).getString());
-		}
-		else {
-			return RESEARCHERS_SELECT_NO_SKIP + 
-					(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");
-		}		
+		return page(RESEARCHERS_SELECT_NO_SKIP, offset, limit);
 	}
 	
 	private static String getOptionalLiteral(QuerySolution qs, String field) {
@@ -110,7 +90,7 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 	}
 
 	private void readResearcherDetails(final Researcher researcher) throws Exception {
-		marengoSparqlClient.select(String.format(RESEARCHER_DETAIL, MARENGO_PREFIX + researcher.getURI()), new ResultSetConsumer() {
+		select(marengoSparqlClient, MARENGO_SPARQL, String.format(RESEARCHER_DETAIL, MARENGO_PREFIX + researcher.getURI()), new ResultSetConsumer() {
 			public void useResultSet(ResultSet rs) {
 				if (rs.hasNext()) {				
 					QuerySolution qs = rs.next();
@@ -128,7 +108,7 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 		});
 		
 		final List<String> lirs = new ArrayList<String>();
-		marengoSparqlClient.select(String.format(RESEARCHER_PUBLICATIONS, MARENGO_PREFIX + researcher.getURI()), new ResultSetConsumer() {
+		select(marengoSparqlClient, MARENGO_SPARQL, String.format(RESEARCHER_PUBLICATIONS, MARENGO_PREFIX + researcher.getURI()), new ResultSetConsumer() {
 			public void useResultSet(ResultSet rs) {
 				while (rs.hasNext()) {				
 					QuerySolution qs = rs.next();
@@ -153,7 +133,7 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 		final StringBuilder publication = new StringBuilder();
 		
 		try {
-			marengoSparqlClient.select(String.format(LIR_DETAIL, lir), new ResultSetConsumer() {
+			select(marengoSparqlClient, MARENGO_SPARQL, String.format(LIR_DETAIL, lir), new ResultSetConsumer() {
 				public void useResultSet(ResultSet rs) throws Exception {				
 					if (rs.hasNext()) {				
 						QuerySolution qs = rs.next();
@@ -209,43 +189,62 @@ public class MarengoDetailProcessor extends SparqlProcessor implements R2RConsta
 	
 	@Override
 	protected ResearcherProcessor getResearcherProcessor(QuerySolution qs) {
-		return new MarengoDetailResearcherProcessor(qs.getResource("?r").getURI(),
-				qs.get("?ts") != null ? ((XSDDateTime)qs.getLiteral("?ts").getValue()).asCalendar() : null);
+		return new MarengoDetailResearcherProcessor(qs.getResource("?r").getURI());
 	}
 
-	private class MarengoDetailResearcherProcessor extends BasicResearcherProcessor {
+	private class MarengoDetailResearcherProcessor extends StagedResearcherProcessor {
 		
-		private Calendar workVerifiedDT = null;
 		private int publicationCount = -1;
 		
+		// only held while the researcher is moving through the stages
+		private Researcher researcher = null;
+		private List<String> preStatements = null;
+		
 		public String toString() {
 			return super.toString() + (publicationCount >= 0 ? " " + publicationCount + " publications" : "");
 		}
 		
-		private MarengoDetailResearcherProcessor(String researcherURI, Calendar workVerifiedDT) {
+		private MarengoDetailResearcherProcessor(String researcherURI) {
 			super(researcherURI);
-			this.workVerifiedDT = workVerifiedDT;
 		}
 
-		public OutputType processResearcher() throws Exception {
-			if (allowSkip() && workVerifiedDT != null && workVerifiedDT.getTimeInMillis() > new DateTime().minusDays(daysConsideredOld).getMillis()) {
+		protected OutputType fetch() throws Exception {
+			if (allowSkip() && processedWithin(daysConsideredOld)) {
 				return OutputType.SKIPPED;
 			}
 			else if (avoid()) {
 				return OutputType.AVOIDED;
 			}
-			else {
-				Researcher researcher = createResearcher();
-				readResearcherDetails(researcher);
-				publicationCount = researcher.getPublications().size();
-				store.startTransaction();
-				store.execute(Arrays.asList(String.format(REMOVE_EXISTING_PUBLICATIONS, getResearcherURI())));
-				store.execute(String.format(DELETE_PRIOR_PROCESS_LOG, getResearcherURI(), getCrawler().getURI()));
-				store.update(researcher);
+			researcher = createResearcher();
+			readResearcherDetails(researcher);
+			return null;
+		}
+		
+		protected OutputType transform() throws Exception {
+			publicationCount = researcher.getPublications().size();
+			preStatements = getCrawler().deletePriorProcessLog(getResearcherURI());
+			return null;
+		}
+		
+		protected OutputType persist() throws Exception {
+			store.startTransaction();
+			try {
+				store.execute(preStatements);
+				// the publications we just read replace the ones we had
+				store.update(researcher, FOAF_PUBLICATIONS);
 				store.endTransaction();
-				return OutputType.PROCESSED;
 			}
-		}		
+			finally {
+				// only matters when something failed before endTransaction
+				store.abortTransaction();
+			}
+			return OutputType.PROCESSED;
+		}
+		
+		public void release() {
+			researcher = null;
+			preStatements = null;
+		}
 		
 		private boolean avoid() {
 			for (String prefix : uriAvoids) {
@@ -12,7 +12,6 @@ import edu.ucsf.crosslink.model.Researcher;
 import edu.ucsf.crosslink.processor.BasicResearcherProcessor;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
 import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
-import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 
 public class MarengoListProcessor extends SparqlProcessor {
 
@@ -32,7 +31,7 @@ public class MarengoListProcessor extends SparqlProcessor {
 	// remove harvester as required item
 	@Inject
 	public MarengoListProcessor(SparqlPersistance store, @Named("avoids") String avoids) throws Exception {
-		super(new SparqlQueryClient("http://marengo.info-science.uiowa.edu:2020/sparql", 60000, 60000), LIMIT, RETRY);
+		super("http://marengo.info-science.uiowa.edu:2020/sparql", 60000, 60000, LIMIT, RETRY);
 		this.store = store;
 		this.uriAvoids = avoids != null ? avoids.split(",") : new String[]{};
 	}
@@ -44,8 +43,12 @@ public class MarengoListProcessor extends SparqlProcessor {
 			avoids += String.format(URI_AVOIDS, uriAvoid);
 		}
 		
-		return String.format(RESEARCHERS_SELECT, avoids) + 
-				(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");
+		return page(String.format(RESEARCHERS_SELECT, avoids), offset, limit);
+	}
+
+	@Override
+	protected String getKeyVariable() {
+		return "?s";
 	}
 
 	@Override
@@ -88,9 +91,15 @@ public class MarengoListProcessor extends SparqlProcessor {
 //						?c <http://www.w3.org/2000/01/rdf-schema#label> "MarengoList"^^<http://www.w3.org/2001/XMLSchema#string>}				}
 //				}
 				store.startTransaction();
-				store.execute(String.format(DELETE_PRIOR_PROCESS_LOG, getResearcherURI(), getCrawler().getURI()));
-				store.update(researcher);
-				store.endTransaction();
+				try {
+					store.execute(getCrawler().deletePriorProcessLog(getResearcherURI()));
+					store.update(researcher);
+					store.endTransaction();
+				}
+				finally {
+					// only matters when something failed before endTransaction
+					store.abortTransaction();
+				}
 				return OutputType.PROCESSED;
 			}
 		}		
@@ -1,14 +1,16 @@
 package edu.ucsf.crosslink.processor.iterator;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.jena.datatypes.xsd.XSDDateTime;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.jena.query.QuerySolution;
-import org.joda.time.DateTime;
 import org.jsoup.HttpStatusException;
 
 import com.google.inject.Inject;
@@ -16,16 +18,17 @@ import com.google.inject.name.Named;
 
 import edu.ucsf.crosslink.io.SparqlPersistance;
 import edu.ucsf.crosslink.io.ThumbnailGenerator;
+import edu.ucsf.crosslink.io.http.PageFetcher.Page;
 import edu.ucsf.crosslink.io.http.SiteReader;
+import edu.ucsf.crosslink.io.http.ValidatorCache;
 import edu.ucsf.crosslink.model.Affiliated;
 import edu.ucsf.crosslink.model.Affiliation;
 import edu.ucsf.crosslink.model.Researcher;
-import edu.ucsf.crosslink.processor.BasicResearcherProcessor;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
+import edu.ucsf.crosslink.processor.StagedResearcherProcessor;
 import edu.ucsf.crosslink.processor.controller.ProcessorController;
 import edu.ucsf.crosslink.processor.controller.TypedOutputStats.OutputType;
 import edu.ucsf.ctsi.r2r.R2RConstants;
-import edu.ucsf.ctsi.r2r.R2ROntology;
 import edu.ucsf.ctsi.r2r.jena.SparqlPostClient;
 import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 
@@ -35,16 +38,9 @@ public class PageItemProcessor extends SparqlProcessor implements Affiliated, R2
 
 	private static final Logger LOG = Logger.getLogger(PageItemProcessor.class.getName());
 
-	private static final String RESEARCHERS_SELECT_SKIP = "SELECT ?r ?ts WHERE { " +
-			"?r <" + R2R_HAS_AFFILIATION + "> <%1$s> . OPTIONAL {?r <" + R2R_PROCESSED + "> ?c . ?c <" + 
-			R2R_PROCESSED_BY + "> <%2$s> . ?c <" + R2R_PROCESSED_ON +  
-			"> ?ts} FILTER (!bound(?ts) || ?ts < \"%3$s\"^^<http://www.w3.org/2001/XMLSchema#dateTime>)} ORDER BY (?ts)";	
-
 	private static final String RESEARCHERS_SELECT_NO_SKIP = "SELECT ?r WHERE { " +
 			"?r <" + R2R_HAS_AFFILIATION + "> <%1$s>}";	
 		
-	private static final String REMOVE_EXISTING_IMAGES = "DELETE {<%1$s> <" + FOAF_HAS_IMAGE + 
-			"> ?i } WHERE " + "{  <%1$s> <" + FOAF_HAS_IMAGE + "> ?i }";	
 
 	private static final String ADD_THUMBNAIL = "INSERT DATA { GRAPH <" + R2R_THUMBNAIL_GRAPH + 
 			"> {<%s> <" + FOAF_HAS_IMAGE + "> <%s> }}";	
@@ -66,10 +62,10 @@ public class PageItemProcessor extends SparqlProcessor implements Affiliated, R2
 	// remove harvester as required item
 	@Inject
 	public PageItemProcessor(Affiliation affiliation,
-			SparqlPersistance store, SiteReader reader,	@Named("r2r.fusekiUrl") String sparqlQuery,		
+			SparqlPersistance store, SiteReader reader,	@Named("r2r.fusekiUrl") String sparqlQuery, SparqlQueryClient sparqlQueryClient,		
 			SparqlPostClient sparqlClient, ThumbnailGenerator thumbnailGenerator,
 			@Named("daysConsideredOld") Integer daysConsideredOld) throws Exception {
-		super(new SparqlQueryClient(sparqlQuery + "/query"), LIMIT);
+		super(sparqlQueryClient, sparqlQuery + "/query", LIMIT);
 		this.affiliation = affiliation;
 		this.reader = reader;
 		this.store = store;
@@ -88,32 +84,33 @@ public class PageItemProcessor extends SparqlProcessor implements Affiliated, R2
 	
 	@Override
 	protected String getSparqlQuery(int offset, int limit) {
-		if (processorController != null && processorController.allowSkip()) {
-			Calendar threshold = Calendar.getInstance();
-			threshold.setTimeInMillis(new DateTime().minusDays(daysConsideredOld).getMillis());
-			return String.format(RESEARCHERS_SELECT_SKIP, getAffiliation().getURI(), processorController.getURI(),
-					R2ROntology.createDefaultModel().createTypedLiteral(threshold).getString());
-		}
-		else {			
-			return String.format(RESEARCHERS_SELECT_NO_SKIP, getAffiliation().getURI()) + 
-					(limit > 0 ? String.format(" OFFSET %d LIMIT %d", offset, limit) : "");
-		}
+		return page(String.format(RESEARCHERS_SELECT_NO_SKIP, getAffiliation().getURI()), offset, limit);
 	}
 	
 	@Override
 	protected ResearcherProcessor getResearcherProcessor(QuerySolution qs) {
-		return new PageItemResearcherProcessor(qs.getResource("?r").getURI(), 
-				qs.get("?ts") != null ? ((XSDDateTime)qs.getLiteral("?ts").getValue()).asCalendar() : null);
+		return new PageItemResearcherProcessor(qs.getResource("?r").getURI());
 	}
 
-	private class PageItemResearcherProcessor extends BasicResearcherProcessor {
+	private class PageItemResearcherProcessor extends StagedResearcherProcessor {
 		
-		private Calendar workVerifiedDT = null;
 		private String message = null;
 		
-		private PageItemResearcherProcessor(String researcherURI, Calendar workVerifiedDT) {
+		// only held while the researcher is moving through the stages
+		private Researcher researcher = null;
+		private Page response = null;
+		// set by startFetch and the callback it gives the reader
+		private boolean started = false;
+		private Page fetched = null;
+		private Exception failure = null;
+		private ValidatorCache.Validator validator = null;
+		private String fingerprint = null;
+		private boolean unchanged = false;
+		private List<String> preStatements = null;
+		private String[] replacedPredicates = null;
+		
+		private PageItemResearcherProcessor(String researcherURI) {
 			super(researcherURI);
-			this.workVerifiedDT = workVerifiedDT;
 		}
 
 		private boolean generateThumbnail(Researcher researcher) {
@@ -131,45 +128,162 @@ public class PageItemProcessor extends SparqlProcessor implements Affiliated, R2
 			store.endTransaction();
 		}
 		
-		public OutputType processResearcher() throws Exception {
-			if (allowSkip() && workVerifiedDT != null && workVerifiedDT.getTimeInMillis() > new DateTime().minusDays(daysConsideredOld).getMillis()) {
+		// SKIPPED, or null once the researcher is ready to be fetched
+		private OutputType prepare() throws URISyntaxException {
+			if (allowSkip() && processedWithin(daysConsideredOld)) {
 				return OutputType.SKIPPED;
 			}
-			else {
-				Researcher researcher = createResearcher();
-				researcher.setAffiliation(affiliation);
+			researcher = createResearcher();
+			researcher.setAffiliation(affiliation);
+			return null;
+		}
+		
+		public boolean startFetch(final Runnable whenFetched) throws Exception {
+			if (prepare() != null) {
+				// fetch() will skip it
+				return false;
+			}
+			started = true;
+			reader.fetchPageItems(researcher, new FutureCallback<Page>() {
+				public void completed(Page page) {
+					fetched = page;
+					whenFetched.run();
+				}
 
-				try {
-					reader.getPageItems(researcher);
+				public void failed(Exception e) {
+					failure = e;
+					whenFetched.run();
 				}
-				catch (HttpStatusException e) {
-					if (404 == e.getStatusCode()) {
-						message = e.toString();
-						deleteResearcher();
-						return OutputType.DELETED;
-					}
-					else {
-						throw e;
-					}
+
+				public void cancelled() {
+					failure = new IOException("Fetch of " + getResearcherURI() + " was cancelled");
+					whenFetched.run();
 				}
+			});
+			return true;
+		}
+		
+		protected OutputType fetch() throws Exception {
+			if (!started) {
+				OutputType skipped = prepare();
+				if (skipped != null) {
+					return skipped;
+				}
+			}
 
-				List<String> preStatements = new ArrayList<String>();
-				preStatements.add(String.format(DELETE_RESEARCHER_THUMBNAIL, getResearcherURI()));
-				if (generateThumbnail(researcher)) {
-					// just drop the triple, not the image or thumbnail
-					preStatements.addAll(Arrays.asList(String.format(REMOVE_EXISTING_IMAGES, getResearcherURI()), 
-						String.format(ADD_THUMBNAIL, getResearcherURI(), researcher.getThumbnailURL())));
+			try {
+				if (failure != null) {
+					throw failure;
+				}
+				response = started ? fetched : reader.fetchPageItems(researcher);
+				fetched = null;
+			}
+			catch (HttpStatusException e) {
+				if (404 == e.getStatusCode()) {
+					message = e.toString();
+					deleteResearcher();
+					return OutputType.DELETED;
+				}
+				else {
+					throw e;
 				}
-				
-				store.startTransaction();
+			}
+			if (reader.isNotModified(response)) {
+				// nothing to parse or generate, but persist still has to note that we looked
+				message = getResearcherURI() + " not modified";
+				unchanged = true;
+				response = null;
+				return null;
+			}
+			validator = reader.getValidator(response);
+			fingerprint = reader.getFingerprint(response);
+			// the site did not say so, but the page is the same as what we stored last time
+			unchanged = reader.isUnchanged(getResearcherURI(), fingerprint);
+			if (unchanged) {
+				message = getResearcherURI() + " unchanged";
+				response = null;
+			}
+			return null;
+		}
+		
+		protected OutputType transform() throws Exception {
+			if (unchanged) {
+				// no image to find and no thumbnail to generate
+				return null;
+			}
+			reader.readPageItems(researcher, response);
+			response = null;
+
+			preStatements = new ArrayList<String>();
+			preStatements.add(String.format(DELETE_RESEARCHER_THUMBNAIL, getResearcherURI()));
+			replacedPredicates = new String[0];
+			if (generateThumbnail(researcher)) {
+				// just replace the triple, not the image or thumbnail
+				replacedPredicates = new String[] {FOAF_HAS_IMAGE};
+				preStatements.add(String.format(ADD_THUMBNAIL, getResearcherURI(), researcher.getThumbnailURL()));
+			}
+			return null;
+		}
+		
+		protected OutputType persist() throws Exception {
+			if (unchanged) {
+				// so the processing log shows the researcher as current and the next crawl can skip it
+				getCrawler().touchProcessLog(getResearcherURI());
+				rememberWhenStored(false);
+				return OutputType.UNCHANGED;
+			}
+			store.startTransaction();
+			try {
 				store.execute(preStatements);
-				store.execute(String.format(DELETE_PRIOR_PROCESS_LOG, getResearcherURI(), getCrawler().getURI()));
-				store.update(researcher);
+				store.execute(getCrawler().deletePriorProcessLog(getResearcherURI()));
+				store.update(researcher, replacedPredicates);
 				store.endTransaction();
-				
-				return OutputType.PROCESSED;
 			}
-		}		
+			finally {
+				// only matters when something failed before endTransaction
+				store.abortTransaction();
+			}
+			rememberWhenStored(true);
+			return OutputType.PROCESSED;
+		}
+		
+		// once the store has it we can ask for the page conditionally next time, but not before or a restart would 
+		// skip a page whose items never made it there.  release() clears the fields before that happens.
+		private void rememberWhenStored(final boolean withFingerprint) {
+			final Researcher researcher = this.researcher;
+			final ValidatorCache.Validator validator = this.validator;
+			final String fingerprint = this.fingerprint;
+			store.whenStored(new SparqlPersistance.WriteListener() {
+				public void stored() {
+					try {
+						reader.rememberPageItems(researcher, validator);
+					}
+					catch (MalformedURLException e) {
+						LOG.log(Level.WARNING, "Unable to remember " + researcher, e);
+					}
+					if (withFingerprint) {
+						reader.rememberFingerprint(getResearcherURI(), fingerprint);
+					}
+				}
+
+				public void rejected(Exception e) {
+					// the controller reports it
+				}
+			});
+		}
+		
+		public void release() {
+			researcher = null;
+			response = null;
+			started = false;
+			fetched = null;
+			failure = null;
+			validator = null;
+			fingerprint = null;
+			unchanged = false;
+			preStatements = null;
+			replacedPredicates = null;
+		}
 	}
 
 }
@@ -12,7 +12,6 @@ import java.util.logging.Logger;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.Statement;
-import org.apache.jena.util.FileManager;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -108,11 +107,19 @@ public class ProfilesSitemapProcessor implements Iterable<ResearcherProcessor>,
 			Researcher researcher = new Researcher(researcherURI, affiliation);
 			researcher.setHomepage(url);
 			if (processorController != null) {
-				researcher.crawledBy(processorController);
+				processorController.logCrawl(researcher);
 			}
 
 			// read the RDF for FOAF information
-			Model model = FileManager.get().loadModel(rdfUrl);
+			Model model = siteReader.readModel(rdfUrl);
+			// the links come from the page and everything else from the RDF, so both have to match
+			String fingerprint = siteReader.getFingerprint(doc, model);
+			if (siteReader.isUnchanged(researcherURI, fingerprint)) {
+				if (processorController != null) {
+					processorController.touchProcessLog(researcherURI);
+				}
+				return OutputType.UNCHANGED;
+			}
 			Resource resource = model.createResource(researcherURI);
 			Statement label = resource.getProperty(model.createProperty(RDFS_LABEL));
 			Statement firstName = resource.getProperty(model.createProperty(FOAF_FIRST_NAME));
@@ -135,8 +142,20 @@ public class ProfilesSitemapProcessor implements Iterable<ResearcherProcessor>,
 		    		researcher.setOrcidId(orcidId);
 		    	}
 	        }
-			store.execute(String.format(DELETE_PRIOR_PROCESS_LOG, researcherURI, processorController.getURI()));
+			store.execute(processorController.deletePriorProcessLog(researcherURI));
 			store.update(researcher);
+			final String storedURI = researcherURI;
+			final String storedFingerprint = fingerprint;
+			// only once the update can not be lost, or a restart would pass over a researcher the store never got
+			store.whenStored(new SparqlPersistance.WriteListener() {
+				public void stored() {
+					siteReader.rememberFingerprint(storedURI, storedFingerprint);
+				}
+
+				public void rejected(Exception e) {
+					// the controller reports it
+				}
+			});
 			return OutputType.PROCESSED;
 		}
 
@@ -144,6 +163,11 @@ public class ProfilesSitemapProcessor implements Iterable<ResearcherProcessor>,
 			this.processorController = processorController;
 		}
 		
+		// we do not know the real URI until we have read the page, but the url is just as stable
+		public String getResearcherURI() {
+			return url;
+		}
+		
 	}
 
 }
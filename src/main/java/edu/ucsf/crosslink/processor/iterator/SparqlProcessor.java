@@ -1,16 +1,26 @@
 package edu.ucsf.crosslink.processor.iterator;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
 
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import edu.ucsf.crosslink.io.http.HostConcurrencyLimiter;
 import edu.ucsf.crosslink.processor.ResearcherProcessor;
 import edu.ucsf.ctsi.r2r.jena.ResultSetConsumer;
 import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
@@ -18,15 +28,33 @@ import edu.ucsf.ctsi.r2r.jena.SparqlQueryClient;
 public abstract class SparqlProcessor implements Iterable<ResearcherProcessor> {
 
 	private static final Logger LOG = Logger.getLogger(SparqlProcessor.class.getName());
+	
+	private static final int MAX_PARTITIONS = 16;
 
 	private SparqlQueryClient sparqlQueryClient = null;
+	private String sparqlQueryUrl = null;
+	private HostConcurrencyLimiter limiter = null;
 	
-	private int offset = 0;
 	private int limit = 0;
-	private String query = "";
+	// the last query built, only for toString.  Partition and prefetch threads set it
+	private volatile String query = "";
 	private int retry = 0;
+	private Pagination pagination = Pagination.OFFSET;
+	// how many slices to split the researchers into, each of which is read on its own thread
+	private int partitions = 1;
+	private Cursor cursor = new Cursor(-1);
+	// the cursor of the partition being read on this thread, if any
+	private final ThreadLocal<Cursor> partitionCursor = new ThreadLocal<Cursor>();
 	
-	private List<ResearcherProcessor> currentResearcherProcessors = new ArrayList<ResearcherProcessor>();
+	private ArrayDeque<ResearcherProcessor> currentResearcherProcessors = new ArrayDeque<ResearcherProcessor>();
+	// how many pages to read ahead in the background, 0 to only query when we run out
+	private int prefetchDepth = 0;
+	private final List<Thread> readerThreads = new ArrayList<Thread>();
+	// when not paging, how many rows to hold between the query and the iterator, 0 to read them all up front
+	private int streamBufferSize = 0;
+	private PageListener pageListener = null;
+	// where the next iterator starts, see resumeAfter
+	private String resumeKey = null;
 	
 	// remove harvester as required item
 	protected SparqlProcessor(SparqlQueryClient sparqlQueryClient, int limit) {
@@ -38,7 +66,81 @@ public abstract class SparqlProcessor implements Iterable<ResearcherProcessor> {
 		this.limit = limit;
 		this.retry = retry;
 	}
+	
+	protected SparqlProcessor(String sparqlQueryUrl, int limit) {
+		this(new SparqlQueryClient(sparqlQueryUrl), sparqlQueryUrl, limit);
+	}
+	
+	// the url is just for the per host limiter, the client might not be going over HTTP at all
+	protected SparqlProcessor(SparqlQueryClient sparqlQueryClient, String sparqlQueryUrl, int limit) {
+		this(sparqlQueryClient, limit);
+		this.sparqlQueryUrl = sparqlQueryUrl;
+	}
+	
+	protected SparqlProcessor(String sparqlQueryUrl, int connectTimeout, int readTimeout, int limit, int retry) {
+		this(new SparqlQueryClient(sparqlQueryUrl, connectTimeout, readTimeout), limit, retry);
+		this.sparqlQueryUrl = sparqlQueryUrl;
+	}
+	
+	@Inject
+	public void setHostConcurrencyLimiter(HostConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
 
+	// OFFSET pages with OFFSET/LIMIT, KEYSET orders by the key variable and asks for the rows after the last one seen, 
+	// which keeps the cost of each page the same no matter how deep into the results we are
+	public enum Pagination {
+		OFFSET, KEYSET;
+	}
+	
+	// KEYSET skips every row with the last key seen, so it would lose rows when a key can come back more than once
+	@Inject
+	public void setPagination(Pagination pagination) {
+		if (Pagination.KEYSET.equals(pagination) && !isKeyUnique()) {
+			LOG.warning(getClass().getSimpleName() + " can return more than one row per " + getKeyVariable() + 
+					", paging with OFFSET instead of KEYSET");
+			pagination = Pagination.OFFSET;
+		}
+		this.pagination = pagination;
+	}
+	
+	/**
+	 * Told about each page as it is read when paging with KEYSET on a single cursor, so that a crawl can keep track 
+	 * of which pages it has finished and later resume after the last key of those.
+	 */
+	public interface PageListener {
+		void pageRead(String lastKey, List<ResearcherProcessor> researchers);
+	}
+	
+	public void setPageListener(PageListener pageListener) {
+		this.pageListener = pageListener;
+	}
+	
+	// the next iterator skips the rows up to and including this key, only when paging with KEYSET on a single cursor
+	public void resumeAfter(String key) {
+		resumeKey = key;
+	}
+	
+	private boolean isResumable() {
+		return Pagination.KEYSET.equals(pagination) && isPaged() && partitions == 1;
+	}
+	
+	@Inject
+	public void setPrefetchDepth(@Named("prefetchDepth") Integer prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+	}
+	
+	// the researcher URI's are split by the first hex digit of their MD5, so there is no point in more than 16
+	@Inject
+	public void setPartitions(@Named("partitions") Integer partitions) {
+		this.partitions = Math.max(1, Math.min(MAX_PARTITIONS, partitions));
+	}
+	
+	@Inject
+	public void setStreamBufferSize(@Named("streamBufferSize") Integer streamBufferSize) {
+		this.streamBufferSize = streamBufferSize;
+	}
+	
 	public String toString() {
 		return "Size = " + currentResearcherProcessors.size() + ", Limit = " + limit + ", Query = " + query;
 	}
@@ -49,50 +151,200 @@ public abstract class SparqlProcessor implements Iterable<ResearcherProcessor> {
 		
 	protected abstract String getSparqlQuery(int offset, int limit) throws Exception;
 	
+	// the variable that identifies each row, used to page with KEYSET
+	protected String getKeyVariable() {
+		return "?r";
+	}
+	
+	// false when the query can return the same key in more than one row, which rules out KEYSET
+	protected boolean isKeyUnique() {
+		return true;
+	}
+	
+	// adds the paging for the current page to the query, derived classes should use this instead of adding OFFSET/LIMIT themselves
+	protected String page(String query, int offset, int limit) {
+		query = partition(query);
+		if (limit <= 0) {
+			return query;
+		}
+		else if (Pagination.KEYSET.equals(pagination)) {
+			String lastKey = getCursor().lastKey;
+			if (lastKey != null) {
+				query = filter(query, "STR(" + getKeyVariable() + ") > \"" + escape(lastKey) + "\"");
+			}
+			return query + " ORDER BY " + getKeyVariable() + " LIMIT " + limit;
+		}
+		return query + String.format(" OFFSET %d LIMIT %d", offset, limit);
+	}
+	
+	// restricts the query to the partition being read, for queries that do not go through page()
+	protected String partition(String query) {
+		Cursor current = getCursor();
+		if (current.partition < 0) {
+			return query;
+		}
+		StringBuilder digits = new StringBuilder();
+		for (int i = current.partition; i < MAX_PARTITIONS; i += partitions) {
+			digits.append(Integer.toHexString(i));
+		}
+		return filter(query, "REGEX(MD5(STR(" + getKeyVariable() + ")), \"^[" + digits + "]\")");
+	}
+	
+	// adds the FILTER to the end of the WHERE clause
+	private static String filter(String query, String expression) {
+		int end = query.lastIndexOf('}');
+		return query.substring(0, end) + " FILTER (" + expression + ") " + query.substring(end);
+	}
+	
+	private Cursor getCursor() {
+		Cursor current = partitionCursor.get();
+		return current != null ? current : cursor;
+	}
+	
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+	
+	private static String getKey(RDFNode node) {
+		if (node == null) {
+			return null;
+		}
+		return node.isURIResource() ? node.asResource().getURI() : 
+			node.isLiteral() ? node.asLiteral().getLexicalForm() : node.toString();
+	}
+	
 	protected abstract ResearcherProcessor getResearcherProcessor(QuerySolution qs);
 	
+	// goes through the per host limiter when we know where the client points
+	protected void select(SparqlQueryClient client, String url, String query, ResultSetConsumer consumer) throws Exception {
+		if (limiter != null && url != null) {
+			limiter.select(client, url, query, consumer);
+		}
+		else {
+			client.select(query, consumer);
+		}
+	}
+	
 	protected void shuttingDown() {
 		// allow derived classes to override
 	}
 	
 	public Iterator<ResearcherProcessor> iterator() {
-		offset = 0;
-		return new SparqlProcessorIterator();
+		synchronized (readerThreads) {
+			// an earlier iterator was abandoned part way through, stop it from reading any more pages
+			for (Thread thread : readerThreads) {
+				thread.interrupt();
+			}
+			readerThreads.clear();
+		}
+		cursor = new Cursor(-1);
+		if (resumeKey != null && isResumable()) {
+			LOG.info(getClass().getSimpleName() + " resuming after " + resumeKey);
+			cursor.lastKey = resumeKey;
+		}
+		resumeKey = null;
+		currentResearcherProcessors.clear();
+		if (partitions > 1) {
+			return new PartitionedIterator();
+		}
+		else if (!isPaged() && streamBufferSize > 0) {
+			return new StreamingIterator();
+		}
+		return prefetchDepth > 0 ? new PrefetchingIterator() : new SparqlProcessorIterator();
     }
 	
-	private void executeQuery() throws Exception {
-		query = getSparqlQuery(offset, limit);
-		final AtomicInteger found = new AtomicInteger();
+	// with no limit the first page has everything
+	private boolean isPaged() {
+		return limit > 0;
+	}
+	
+	private Thread startReader(Runnable reader, String name) {
+		Thread thread = new Thread(reader, name + " " + getClass().getSimpleName());
+		thread.setDaemon(true);
+		synchronized (readerThreads) {
+			readerThreads.add(thread);
+		}
+		thread.start();
+		return thread;
+	}
+	
+	// reads the next page for the cursor, empty when there are no more
+	private List<ResearcherProcessor> readPage(final Cursor cursor) throws Exception {
+		String query = getSparqlQuery(cursor);
 		Exception currentException = null;
 		for (int i = 0; i <= retry; i++) {
+			final List<ResearcherProcessor> page = new ArrayList<ResearcherProcessor>();
 			try {
-				getSparqlClient().select(query, new ResultSetConsumer() {
+				select(getSparqlClient(), sparqlQueryUrl, query, new ResultSetConsumer() {
 					public void useResultSet(ResultSet rs) {
+						String key = null;
 						while (rs.hasNext()) {				
-							currentResearcherProcessors.add(getResearcherProcessor(rs.next()));
-							found.incrementAndGet();
+							QuerySolution qs = rs.next();
+							page.add(getResearcherProcessor(qs));
+							if (Pagination.KEYSET.equals(pagination)) {
+								key = getKey(qs.get(getKeyVariable()));
+							}
 						}	
+						if (key != null) {
+							cursor.lastKey = key;
+						}
 					}
 				});				
-				offset += found.get();
-				return;
+				cursor.offset += page.size();
+				if (pageListener != null && isResumable() && cursor.partition < 0 && !page.isEmpty()) {
+					pageListener.pageRead(cursor.lastKey, page);
+				}
+				return page;
 			}
 			catch (QueryExceptionHTTP e) {
 				currentException = e;
 				LOG.log(Level.WARNING, "Try #" + i, e);			
 			}			
 		}
-		if (currentException != null) {
-			throw currentException;
+		throw currentException;
+	}
+	
+	// builds the query with the cursor visible to page() and partition()
+	private String getSparqlQuery(Cursor cursor) throws Exception {
+		partitionCursor.set(cursor);
+		try {
+			query = getSparqlQuery(cursor.offset, limit);
+			return query;
+		}
+		finally {
+			partitionCursor.remove();
 		}
 	}
 	
+	private boolean isLastPage(List<ResearcherProcessor> page) {
+		return !isPaged() || page.isEmpty();
+	}
+	
 	private class SparqlProcessorIterator implements Iterator<ResearcherProcessor> {
+		
+		private boolean lastPage = false;
+		private boolean finished = false;
 
+		// null when there are no more pages
+		protected List<ResearcherProcessor> nextPage() throws Exception {
+			if (lastPage) {
+				return null;
+			}
+			List<ResearcherProcessor> page = readPage(cursor);
+			lastPage = isLastPage(page);
+			return page;
+		}
+		
 		public boolean hasNext() {
-			if (currentResearcherProcessors.isEmpty() && (offset == 0 || limit > 0)) {
+			while (currentResearcherProcessors.isEmpty() && !finished) {
 				try {
-					executeQuery();
+					List<ResearcherProcessor> page = nextPage();
+					if (page == null) {
+						finished = true;
+					}
+					else {
+						currentResearcherProcessors.addAll(page);
+					}
 				} 
 				catch (Exception e) {
 					throw new RuntimeException(e);
@@ -105,9 +357,245 @@ public abstract class SparqlProcessor implements Iterable<ResearcherProcessor> {
 		}
 
 		public ResearcherProcessor next() {
-			return currentResearcherProcessors.remove(0);
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return currentResearcherProcessors.poll();
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+	}
+	
+	/**
+	 * Reads pages on a background thread up to prefetchDepth pages ahead of the one being handed out, so the 
+	 * controller does not sit idle waiting on the next query every time it gets to the end of a page.
+	 */
+	private class PrefetchingIterator extends SparqlProcessorIterator implements Runnable {
+		
+		private final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(prefetchDepth);
+		
+		private PrefetchingIterator() {
+			startReader(this, "Prefetch");
+		}
+		
+		public void run() {
+			try {
+				List<ResearcherProcessor> page = null;
+				do {
+					page = readPage(cursor);
+					pages.put(new Page(page, null));
+				} while (!isLastPage(page));
+				pages.put(Page.END);
+			}
+			catch (InterruptedException e) {
+				LOG.info("Prefetch stopped for " + SparqlProcessor.this.getClass().getName());
+			}
+			catch (Exception e) {
+				// hand it to the iterating thread
+				try {
+					pages.put(new Page(null, e));
+				}
+				catch (InterruptedException ie) {
+					LOG.log(Level.WARNING, "Prefetch stopped after error", e);
+				}
+			}
+		}
+		
+		@Override
+		protected List<ResearcherProcessor> nextPage() throws Exception {
+			Page page = pages.take();
+			if (page.error != null) {
+				throw page.error;
+			}
+			return page != Page.END ? page.researchers : null;
+		}
+	}
+	
+	/**
+	 * Splits the query into partitions by a hash of the key variable and reads each one on its own thread, so 
+	 * one slow query stream does not hold up a large harvest.  Pages come back in whatever order they finish.
+	 */
+	private class PartitionedIterator extends SparqlProcessorIterator {
+		
+		private final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(partitions * Math.max(1, prefetchDepth));
+		private int running = partitions;
+		
+		private PartitionedIterator() {
+			for (int i = 0; i < partitions; i++) {
+				final Cursor partitionCursor = new Cursor(i);
+				startReader(new Runnable() {
+					public void run() {
+						readPartition(partitionCursor);
+					}
+				}, "Partition " + i);
+			}
+		}
+		
+		private void readPartition(Cursor cursor) {
+			try {
+				List<ResearcherProcessor> page = null;
+				do {
+					page = readPage(cursor);
+					if (!page.isEmpty()) {
+						pages.put(new Page(page, null));
+					}
+				} while (!isLastPage(page));
+				pages.put(Page.END);
+			}
+			catch (InterruptedException e) {
+				LOG.info("Partition " + cursor.partition + " stopped for " + SparqlProcessor.this.getClass().getName());
+			}
+			catch (Exception e) {
+				try {
+					pages.put(new Page(null, e));
+				}
+				catch (InterruptedException ie) {
+					LOG.log(Level.WARNING, "Partition " + cursor.partition + " stopped after error", e);
+				}
+			}
+		}
+		
+		@Override
+		protected List<ResearcherProcessor> nextPage() throws Exception {
+			while (running > 0) {
+				Page page = pages.take();
+				if (page.error != null) {
+					throw page.error;
+				}
+				else if (page == Page.END) {
+					running--;
+				}
+				else {
+					return page.researchers;
+				}
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * For unpaged queries.  Rows are handed from the open result set to the iterator through a buffer of 
+	 * streamBufferSize and only turned into ResearcherProcessors as they are asked for, so memory stays flat no 
+	 * matter how many researchers the query returns.
+	 */
+	private class StreamingIterator implements Iterator<ResearcherProcessor>, Runnable {
+		
+		private final BlockingQueue<Object> rows = new ArrayBlockingQueue<Object>(streamBufferSize);
+		private ResearcherProcessor next = null;
+		private boolean finished = false;
+		
+		private StreamingIterator() {
+			startReader(this, "Stream");
+		}
+		
+		public void run() {
+			try {
+				String query = getSparqlQuery(cursor);
+				Exception currentException = null;
+				final AtomicBoolean started = new AtomicBoolean();
+				for (int i = 0; i <= retry && !started.get(); i++) {
+					try {
+						// not through the limiter, a permit would be held for as long as the workers take to drain the 
+						// stream, and their own store writes need permits for the same host
+						getSparqlClient().select(query, new ResultSetConsumer() {
+							public void useResultSet(ResultSet rs) throws Exception {
+								while (rs.hasNext()) {
+									rows.put(rs.next());
+									started.set(true);
+								}
+							}
+						});
+						currentException = null;
+						break;
+					}
+					catch (QueryExceptionHTTP e) {
+						// can only retry if we have not handed anything out yet
+						currentException = e;
+						LOG.log(Level.WARNING, "Try #" + i, e);
+					}
+				}
+				rows.put(currentException != null ? currentException : END_OF_ROWS);
+			}
+			catch (InterruptedException e) {
+				LOG.info("Stream stopped for " + SparqlProcessor.this.getClass().getName());
+			}
+			catch (Exception e) {
+				try {
+					rows.put(e);
+				}
+				catch (InterruptedException ie) {
+					LOG.log(Level.WARNING, "Stream stopped after error", e);
+				}
+			}
+		}
+		
+		public boolean hasNext() {
+			if (next == null && !finished) {
+				try {
+					Object row = rows.take();
+					if (row instanceof QuerySolution) {
+						next = getResearcherProcessor((QuerySolution)row);
+						cursor.offset++;
+					}
+					else {
+						finished = true;
+						if (row instanceof Exception) {
+							throw (Exception)row;
+						}
+					}
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			if (next == null) {
+				shuttingDown();
+			}
+			return next != null;
+		}
+		
+		public ResearcherProcessor next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ResearcherProcessor retval = next;
+			next = null;
+			return retval;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	private static final Object END_OF_ROWS = new Object();
+	
+	// where one stream of queries is up to
+	private static final class Cursor {
+		// -1 for the whole query
+		private final int partition;
+		private int offset = 0;
+		// key of the last row we read, for KEYSET pagination
+		private String lastKey = null;
+		
+		private Cursor(int partition) {
+			this.partition = partition;
 		}
+	}
+	
+	private static final class Page {
+		private static final Page END = new Page(null, null);
 		
+		private final List<ResearcherProcessor> researchers;
+		private final Exception error;
+		
+		private Page(List<ResearcherProcessor> researchers, Exception error) {
+			this.researchers = researchers != null ? researchers : Collections.<ResearcherProcessor>emptyList();
+			this.error = error;
+		}
 	}
 	
 }
@@ -43,6 +43,8 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.sun.jersey.api.view.Viewable;
 
+import edu.ucsf.crosslink.io.http.CircuitBreakerRegistry;
+import edu.ucsf.crosslink.io.http.HostConcurrencyLimiter;
 import edu.ucsf.crosslink.job.quartz.Quartz;
 import edu.ucsf.crosslink.model.Affiliated;
 import edu.ucsf.crosslink.model.Affiliation;
@@ -108,6 +110,8 @@ public class FusekiRestMethods implements R2RConstants {
 	private ProcessorControllerFactory factory;
 	private JsonLDService jsonLDService;
 	private SparqlQueryClient uiSparqlClient;
+	private HostConcurrencyLimiter limiter;
+	private CircuitBreakerRegistry breakers;
 	
 	// XML bs
 	private DocumentBuilderFactory docFactory;
@@ -127,6 +131,16 @@ public class FusekiRestMethods implements R2RConstants {
 		transformer = TransformerFactory.newInstance().newTransformer();
 	}
 
+	@Inject
+	public void setHostConcurrencyLimiter(HostConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	@Inject
+	public void setCircuitBreakerRegistry(CircuitBreakerRegistry breakers) {
+		this.breakers = breakers;
+	}
+
 	@GET
 	@Path("/index")
 	public Viewable index(@Context HttpServletRequest request,
@@ -162,6 +176,8 @@ public class FusekiRestMethods implements R2RConstants {
 			}
 		}
 		request.setAttribute("crawler", processorController);
+		request.setAttribute("hostLimits", limiter.getHostLimits());
+		request.setAttribute("breakers", breakers.getBreakers());
 		if (processorController.getIterable() instanceof Affiliated) {
 			request.setAttribute("affiliation", ((Affiliated)processorController.getIterable()).getAffiliation());			
 		}
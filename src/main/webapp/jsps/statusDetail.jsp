@@ -24,6 +24,20 @@
 		</c:if>
 	</c:forEach>
 	
+	<c:if test="${not empty hostLimits}">
+	    <h2>Host Limits</h2>
+		<c:forEach var="hostLimit" items="${hostLimits}">
+			<c:out value="${hostLimit}"/><br/>
+		</c:forEach><p>
+	</c:if>
+
+	<c:if test="${not empty breakers}">
+	    <h2>Host Circuit Breakers</h2>
+		<c:forEach var="breaker" items="${breakers}">
+			<c:out value="${breaker}"/><br/>
+		</c:forEach><p>
+	</c:if>
+	
 	<c:if test="${not empty crawler.latestErrorStackTrace}">
 		Latest Exception : <span style="color:#ff0000">
 		<c:out value="${crawler.latestErrorStackTrace}" escapeXml="false"/></span><p>